@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs;
+
+import static org.jclouds.blobstore.options.GetOptions.Builder.range;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.inDirectory;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.recursive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Copies objects from a container into HDFS, each object with parallel range requests.
+ *
+ * An HDFS file is written by a single stream, from start to end, so the chunks of an object are fetched a few at a
+ * time ahead of the writer and written in order as they come in. Chunks divide the HDFS block size, so each write
+ * of a chunk fills part of a single block. A permit is taken for every chunk held in memory, over all objects at
+ * once, which caps the memory at {@link #CHUNKS_PER_THREAD} chunks per thread whatever the number and size of
+ * the objects.
+ *
+ * Every range request is made only if the object still has the ETag it had when the copy started, and its answer
+ * must hold exactly the range asked for, so that an object replaced during the copy, or a server that ignores
+ * ranges and sends the whole object, fails the copy instead of writing a file mixed up from other bytes.
+ */
+public class BlobIngester {
+   /**
+    * Largest chunk to fetch with one request.
+    */
+   public static final long MAX_CHUNK_SIZE = 16L * 1024 * 1024;
+   /**
+    * Smallest chunk worth a request of its own when looking for one that divides the block size.
+    */
+   static final long MIN_CHUNK_SIZE = 1024 * 1024;
+   /**
+    * Chunks in memory per thread, fetched or being fetched.
+    */
+   static final int CHUNKS_PER_THREAD = 2;
+   private static final int ATTEMPTS = 3;
+   private static final String CONTENT_RANGE = "Content-Range";
+
+   private final BlobStore blobStore;
+   private final FileSystem fs;
+   private final int threads;
+   private final short replication;
+   private final long blockSize;
+   private final int chunkSize;
+   private final Semaphore chunks;
+   private final AtomicInteger files = new AtomicInteger();
+   private final AtomicInteger failures = new AtomicInteger();
+   private final AtomicLong bytes = new AtomicLong();
+
+   /**
+    * @param threads the number of chunks being fetched and of objects being written at once.
+    * @param replication the replication of the files written.
+    * @param blockSize the block size of the files written.
+    */
+   public BlobIngester(BlobStore blobStore, FileSystem fs, int threads, short replication, long blockSize) {
+      this.blobStore = blobStore;
+      this.fs = fs;
+      this.threads = threads;
+      this.replication = replication;
+      this.blockSize = blockSize;
+      this.chunkSize = chunkSize(blockSize);
+      this.chunks = new Semaphore(threads * CHUNKS_PER_THREAD);
+   }
+
+   /**
+    * Copies the object name, or every object under the directory name, or the whole container if name is empty,
+    * to target; objects under a directory go to their path below it under target.
+    *
+    * @return the number of bytes copied.
+    */
+   public long ingest(final String container, String name, final Path target) throws IOException {
+      final ExecutorService fetchers = Executors.newFixedThreadPool(threads);
+      ExecutorService writers = Executors.newFixedThreadPool(threads);
+      try {
+         if (name.length() > 0 && blobStore.blobExists(container, name)) {
+            ingest(container, name, target, fetchers);
+         } else {
+            final String prefix = name.length() == 0 || name.endsWith("/") ? name : name + "/";
+            // only as many objects queued as are written, the listing is not held in memory
+            final Semaphore objects = new Semaphore(threads);
+            String marker = null;
+            do {
+               ListContainerOptions options = prefix.length() == 0 ? recursive() :
+                     inDirectory(prefix.substring(0, prefix.length() - 1)).recursive();
+               if (marker != null)
+                  options.afterMarker(marker);
+               PageSet<? extends StorageMetadata> page = blobStore.list(container, options);
+               for (StorageMetadata metadata : page) {
+                  if (metadata.getType() != StorageType.BLOB)
+                     continue;
+                  final String object = metadata.getName();
+                  objects.acquire();
+                  writers.execute(new Runnable() {
+                     public void run() {
+                        try {
+                           ingest(container, object, new Path(target, object.substring(prefix.length())), fetchers);
+                        } catch (Exception e) {
+                           // one object less, the others go on
+                           failures.incrementAndGet();
+                           System.err.println("Could not copy " + object + ": " + e);
+                        } finally {
+                           objects.release();
+                        }
+                     }
+                  });
+               }
+               marker = page.getNextMarker();
+            } while (marker != null);
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while copying " + container + "/" + name);
+      } finally {
+         writers.shutdownNow();
+         fetchers.shutdownNow();
+      }
+      System.out.println(files.get() + " objects copied, " + failures.get() + " failed");
+      return bytes.get();
+   }
+
+   /**
+    * Copies one object into file, which is replaced, or removed if the copy fails.
+    */
+   private void ingest(String container, String name, Path file, ExecutorService fetchers) throws IOException,
+         InterruptedException {
+      BlobMetadata metadata = blobStore.blobMetadata(container, name);
+      if (metadata == null) {
+         throw new IOException(name + " is gone");
+      }
+      long length = metadata.getContentMetadata().getContentLength();
+      String eTag = metadata.getETag();
+      FSDataOutputStream out = fs.create(file, true, fs.getConf().getInt("io.file.buffer.size", 4096),
+            replication, blockSize);
+      Deque<Future<byte[]>> fetching = new ArrayDeque<Future<byte[]>>();
+      boolean done = false;
+      try {
+         long next = 0;
+         while (next < length || !fetching.isEmpty()) {
+            // Fetch ahead while there is memory left, but always at least one chunk: holding none, waiting
+            // for a permit cannot block the permits of others.
+            while (next < length && (fetching.isEmpty() ? acquire() : chunks.tryAcquire())) {
+               long size = Math.min(chunkSize, length - next);
+               fetching.add(fetchers.submit(fetch(container, name, eTag, next, (int) size, length)));
+               next += size;
+            }
+            byte[] chunk = fetching.peek().get();
+            out.write(chunk);
+            fetching.poll();
+            chunks.release();
+         }
+         out.close();
+         done = true;
+         files.incrementAndGet();
+         bytes.addAndGet(length);
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } finally {
+         for (Future<byte[]> future : fetching) {
+            future.cancel(true);
+            chunks.release();
+         }
+         if (!done) {
+            Closeables.closeQuietly(out);
+            fs.delete(file, false);
+         }
+      }
+   }
+
+   /**
+    * @return the largest size up to {@link #MAX_CHUNK_SIZE} that divides the block size. If there is none of at
+    *         least {@link #MIN_CHUNK_SIZE}, which takes an odd block size, chunks of MAX_CHUNK_SIZE that may cross
+    *         into the next block.
+    */
+   static int chunkSize(long blockSize) {
+      if (blockSize <= MAX_CHUNK_SIZE) {
+         return (int) blockSize;
+      }
+      for (long perBlock = (blockSize + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE; blockSize / perBlock >= MIN_CHUNK_SIZE;
+            perBlock++) {
+         if (blockSize % perBlock == 0) {
+            return (int) (blockSize / perBlock);
+         }
+      }
+      return (int) MAX_CHUNK_SIZE;
+   }
+
+   private boolean acquire() throws InterruptedException {
+      chunks.acquire();
+      return true;
+   }
+
+   /**
+    * Fetches a range of the object, of the version with the ETag if there is one, again from the start of the
+    * range if it fails.
+    */
+   private Callable<byte[]> fetch(final String container, final String name, final String eTag, final long offset,
+         final int size, final long length) {
+      return new Callable<byte[]>() {
+         public byte[] call() throws IOException {
+            for (int attempt = 1; ; attempt++) {
+               InputStream in = null;
+               try {
+                  GetOptions options = range(offset, offset + size - 1);
+                  if (eTag != null)
+                     options.ifETagMatches(eTag);
+                  Blob blob = blobStore.getBlob(container, name, options);
+                  if (blob == null)
+                     throw new IOException(name + " is gone");
+                  checkRange(blob, name, offset, size, length);
+                  in = blob.getPayload().getInput();
+                  byte[] chunk = new byte[size];
+                  ByteStreams.readFully(in, chunk);
+                  if (in.read() != -1)
+                     throw new IOException("more than the " + size + " bytes asked for at " + offset + " of " + name);
+                  return chunk;
+               } catch (IOException e) {
+                  if (attempt == ATTEMPTS)
+                     throw e;
+               } catch (RuntimeException e) {
+                  if (attempt == ATTEMPTS)
+                     throw e;
+               } finally {
+                  Closeables.closeQuietly(in);
+               }
+            }
+         }
+      };
+   }
+
+   /**
+    * Checks that the answer holds the range asked for and not, as a server or proxy that ignores ranges sends,
+    * the whole object; that is only right for a range that is the whole object.
+    */
+   private static void checkRange(Blob blob, String name, long offset, int size, long length) throws IOException {
+      if (offset == 0 && size == length)
+         return;
+      String expected = "bytes " + offset + "-" + (offset + size - 1) + "/" + length;
+      for (Map.Entry<String, String> header : blob.getAllHeaders().entries()) {
+         if (CONTENT_RANGE.equalsIgnoreCase(header.getKey())) {
+            if (expected.equals(header.getValue().trim()))
+               return;
+            throw new IOException("asked for " + expected + " of " + name + ", got " + header.getValue());
+         }
+      }
+      throw new IOException("asked for " + expected + " of " + name + ", got no Content-Range, the range was " +
+            "ignored");
+   }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs;
+
+import static org.jclouds.blobstore.options.PutOptions.Builder.multipart;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.examples.blobstore.hdfs.io.payloads.HdfsPayload;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Uploads every file under an HDFS directory, each as an object named after its path below the directory.
+ *
+ * The directory tree is listed one directory at a time, as the files are needed, and the files are handed to the
+ * upload threads through a bounded queue: uploads start with the first files listed, and a tree of millions of
+ * files is never held in memory. All threads share the blob store, and so its context and connections. Files
+ * from {@link #MULTIPART_THRESHOLD} up are sent with a multipart upload.
+ */
+public class DirectoryUploader {
+   public static final long MULTIPART_THRESHOLD = 32L * 1024 * 1024;
+
+   /**
+    * Put in the queue after the last file, once for every thread.
+    */
+   private static final FileStatus END = new FileStatus();
+
+   private final BlobStore blobStore;
+   private final Configuration configuration;
+   private final int threads;
+   private final AtomicInteger files = new AtomicInteger();
+   private final AtomicInteger failures = new AtomicInteger();
+   private final AtomicLong bytes = new AtomicLong();
+
+   public DirectoryUploader(BlobStore blobStore, Configuration configuration, int threads) {
+      this.blobStore = blobStore;
+      this.configuration = configuration;
+      this.threads = threads;
+   }
+
+   /**
+    * Uploads the files under directory to the container, their object names starting with prefix.
+    *
+    * @return the number of bytes uploaded.
+    */
+   public long upload(Path directory, final String container, final String prefix) throws IOException {
+      FileSystem fs = directory.getFileSystem(configuration);
+      // qualified, to cut the same start off every path listed
+      final Path root = fs.getFileStatus(directory).getPath();
+      final BlockingQueue<FileStatus> queue = new ArrayBlockingQueue<FileStatus>(threads * 16);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+               public void run() {
+                  try {
+                     for (FileStatus file = queue.take(); file != END; file = queue.take()) {
+                        upload(file, container, prefix + relativePath(root, file.getPath()));
+                     }
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+               }
+            });
+         }
+         Iterator<FileStatus> listing = listFiles(fs, root);
+         while (listing.hasNext()) {
+            queue.put(listing.next());
+         }
+         for (int i = 0; i < threads; i++) {
+            queue.put(END);
+         }
+         executor.shutdown();
+         executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while uploading " + directory);
+      } catch (RuntimeException e) {
+         // listing failed
+         Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+         throw e;
+      } finally {
+         executor.shutdownNow();
+      }
+      System.out.println(files.get() + " files uploaded, " + failures.get() + " failed");
+      return bytes.get();
+   }
+
+   private void upload(FileStatus file, String container, String name) {
+      try {
+         Blob blob = blobStore.blobBuilder(name)
+               .payload(new HdfsPayload(file.getPath(), configuration, file.getLen()))
+               .contentType(MediaType.APPLICATION_OCTET_STREAM).build();
+         if (file.getLen() >= MULTIPART_THRESHOLD) {
+            blobStore.putBlob(container, blob, multipart());
+         } else {
+            blobStore.putBlob(container, blob);
+         }
+         files.incrementAndGet();
+         bytes.addAndGet(file.getLen());
+      } catch (Exception e) {
+         // one file less, the others go on
+         failures.incrementAndGet();
+         System.err.println("Could not upload " + file.getPath() + ": " + e);
+      }
+   }
+
+   /**
+    * @return the path below root, with / between the names.
+    */
+   static String relativePath(Path root, Path path) {
+      String rootPath = root.toUri().getPath();
+      String filePath = path.toUri().getPath();
+      return filePath.substring(rootPath.endsWith("/") ? rootPath.length() : rootPath.length() + 1);
+   }
+
+   /**
+    * Lists the files under root, depth first, listing a directory only when the files before it were taken.
+    * Errors are thrown as RuntimeExceptions around the IOException.
+    */
+   static Iterator<FileStatus> listFiles(final FileSystem fs, Path root) {
+      final Deque<Path> directories = new ArrayDeque<Path>();
+      directories.push(root);
+      return new AbstractIterator<FileStatus>() {
+         private final Deque<FileStatus> listed = new ArrayDeque<FileStatus>();
+
+         @Override
+         protected FileStatus computeNext() {
+            while (listed.isEmpty()) {
+               if (directories.isEmpty()) {
+                  return endOfData();
+               }
+               FileStatus[] children;
+               try {
+                  children = fs.listStatus(directories.pop());
+               } catch (IOException e) {
+                  throw Throwables.propagate(e);
+               }
+               if (children == null) {
+                  // removed since it was listed
+                  continue;
+               }
+               for (FileStatus child : children) {
+                  if (child.isDir()) {
+                     directories.push(child.getPath());
+                  } else {
+                     listed.add(child);
+                  }
+               }
+            }
+            return listed.poll();
+         }
+      };
+   }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.jclouds.Constants;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.BlobStoreContextFactory;
+import org.jclouds.blobstore.util.BlobStoreUtils;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Demonstrates the use of {@link BlobStore} to copy from a blob container to HDFS
+ * 
+ * Usage is: java IngestApp \"provider\" \"identity\" \"credential\" \"containerName\" \"objectName\"
+ * \"hdfsUrl\" plainhttp threadcount replication blocksizeMB
+ * 
+ * \"plainhttp\", \"threadcount\", \"replication\" and \"blocksizeMB\" are optional if all the rest of parameters
+ * are omitted; replication and block size default to the ones of the file system. An objectName that is not an
+ * object is a directory, every object under it is copied below hdfsUrl; an objectName of / copies the whole
+ * container. See {@link BlobIngester}.
+ */
+public class IngestApp extends Configured {
+
+   public static int PARAMETERS = 6;
+   public static String INVALID_SYNTAX = "Invalid number of parameters. Syntax is: \"provider\" \"identity\" \"credential\" \"containerName\" \"objectName\" \"hdfsUrl\" plainhttp threadcount replication blocksizeMB";
+
+   private void ingest(String provider, String identity, String credential, String containerName,
+         String objectName, String hdfsUrl, boolean plainhttp, int threads, short replication, long blockSize)
+         throws IOException {
+      // Init
+      Properties overrides = new Properties();
+      if (plainhttp)
+         overrides.putAll(MainApp.PLAIN_HTTP_ENDPOINTS); // default is https
+      // every chunk holds a connection while it is read
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(threads));
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(threads));
+      overrides.setProperty(provider + ".identity", identity);
+      overrides.setProperty(provider + ".credential", credential);
+      BlobStoreContext context = new BlobStoreContextFactory().createContext(provider, MainApp.HDFS_MODULES,
+            overrides);
+
+      try {
+         long start = System.currentTimeMillis();
+         Configuration conf = getConf();
+         if (conf == null) {
+            conf = new Configuration();
+            setConf(conf);
+         }
+         Path path = new Path(hdfsUrl);
+         FileSystem fs = path.getFileSystem(conf);
+         if (replication == 0)
+            replication = fs.getDefaultReplication();
+         if (blockSize == 0)
+            blockSize = fs.getDefaultBlockSize();
+         String name = "/".equals(objectName) ? "" : objectName;
+         long length = new BlobIngester(context.getBlobStore(), fs, threads, replication, blockSize)
+               .ingest(containerName, name, path);
+
+         MainApp.printSpeed("Sucessfully copied", start, length);
+      } finally {
+         // Close connection
+         context.close();
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+
+      if (args.length < PARAMETERS)
+         throw new IllegalArgumentException(INVALID_SYNTAX);
+
+      // Args
+      String provider = args[0];
+      if (!Iterables.contains(BlobStoreUtils.getSupportedProviders(), provider))
+         throw new IllegalArgumentException("provider " + provider + " not in supported list: "
+                  + BlobStoreUtils.getSupportedProviders());
+      String identity = args[1];
+      String credential = args[2];
+      String containerName = args[3];
+      String objectName = args[4];
+      String hdfsUrl = args[5];
+      boolean plainhttp = args.length >= 7 && "plainhttp".equals(args[6]);
+      int threads = args.length >= 8 ? Integer.parseInt(args[7]) : MainApp.DEFAULT_THREADS;
+      short replication = args.length >= 9 ? Short.parseShort(args[8]) : 0;
+      long blockSize = args.length >= 10 ? Long.parseLong(args[9]) * 1024 * 1024 : 0;
+
+      IngestApp app = new IngestApp();
+      app.ingest(provider, identity, credential, containerName, objectName, hdfsUrl, plainhttp, threads,
+            replication, blockSize);
+      System.exit(0);
+   }
+}
@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.jclouds.aws.s3.AWSS3Client;
+import org.jclouds.crypto.CryptoStreams;
+import org.jclouds.examples.blobstore.hdfs.io.HdfsPayloadSlicer;
+import org.jclouds.examples.blobstore.hdfs.io.payloads.HdfsPayload;
+import org.jclouds.io.Payload;
+import org.jclouds.io.payloads.InputStreamSupplierPayload;
+import org.jclouds.s3.domain.ObjectMetadataBuilder;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.InputSupplier;
+
+/**
+ * Uploads an HDFS file to S3 as a multipart upload whose parts follow the blocks of the file.
+ *
+ * The block locations of the file say which datanodes hold which range. Every block is cut into parts that do
+ * not cross into the next block, so a part is read from a single datanode, and every part is given to one of the
+ * hosts holding its block: this host if it is one of them, otherwise the one with the fewest bytes so far. Only a
+ * file too large for that many parts gets parts of several blocks. Each host has a pool of its own, so every
+ * datanode serves a few parts at a time and none is left idle while another one is swamped, which a single pool
+ * working through the file in order would do, block after block.
+ *
+ * Every part is hashed as it is sent and checked against the ETag S3 returns for it.
+ */
+public class LocalityUploader {
+   /**
+    * Largest part size to aim for; blocks of 64MB or 128MB are cut in parts of 32MB.
+    */
+   public static final long TARGET_PART_SIZE = 32L * 1024 * 1024;
+   /**
+    * The smallest part S3 accepts, but for the last one.
+    */
+   static final long MINIMUM_PART_SIZE = 5L * 1024 * 1024;
+   /**
+    * The limits of S3 on multipart uploads: parts per upload, bytes per part and per object.
+    */
+   static final int MAX_PARTS = 10000;
+   static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+   static final long MAX_OBJECT_SIZE = 5L * 1024 * 1024 * 1024 * 1024;
+
+   private final AWSS3Client s3;
+   private final int threadsPerHost;
+   private final HdfsPayloadSlicer slicer = new HdfsPayloadSlicer();
+
+   public LocalityUploader(AWSS3Client s3, int threadsPerHost) {
+      this.s3 = s3;
+      this.threadsPerHost = threadsPerHost;
+   }
+
+   /**
+    * A range of the file, to be read from one of the hosts of its block.
+    */
+   static class Part {
+      final int number;
+      final long offset;
+      final long length;
+      final String[] hosts;
+      String host;
+
+      Part(int number, long offset, long length, String[] hosts) {
+         this.number = number;
+         this.offset = offset;
+         this.length = length;
+         this.hosts = hosts;
+      }
+   }
+
+   /**
+    * Uploads the file to the bucket under the key.
+    *
+    * @return the ETag of the object.
+    */
+   public String upload(HdfsPayload payload, String bucket, String key) throws IOException {
+      List<Part> parts = plan(payload);
+      Map<String, List<Part>> byHost = assign(parts, localHost());
+      for (Map.Entry<String, List<Part>> host : byHost.entrySet()) {
+         long bytes = 0;
+         for (Part part : host.getValue()) {
+            bytes += part.length;
+         }
+         System.out.println("  " + host.getKey() + ": " + host.getValue().size() + " parts, " + bytes + " bytes");
+      }
+
+      String contentType = payload.getContentMetadata().getContentType();
+      String uploadId = s3.initiateMultipartUpload(bucket, ObjectMetadataBuilder.create().key(key)
+            .contentType(contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM).build());
+      List<ExecutorService> pools = new ArrayList<ExecutorService>();
+      Map<Integer, Future<String>> futures = new HashMap<Integer, Future<String>>();
+      try {
+         for (List<Part> hostParts : byHost.values()) {
+            ExecutorService pool = Executors.newFixedThreadPool(threadsPerHost);
+            pools.add(pool);
+            for (Part part : hostParts) {
+               futures.put(part.number, pool.submit(uploadPart(payload, bucket, key, uploadId, part)));
+            }
+         }
+         // LinkedHashMap, the parts go in their order
+         Map<Integer, String> eTags = new LinkedHashMap<Integer, String>();
+         for (Part part : parts) {
+            eTags.put(part.number, futures.get(part.number).get());
+         }
+         return s3.completeMultipartUpload(bucket, key, uploadId, eTags);
+      } catch (ExecutionException e) {
+         abort(bucket, key, uploadId);
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         abort(bucket, key, uploadId);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while uploading " + payload.getRawContent());
+      } catch (RuntimeException e) {
+         abort(bucket, key, uploadId);
+         throw e;
+      } finally {
+         for (ExecutorService pool : pools) {
+            pool.shutdownNow();
+         }
+      }
+   }
+
+   /**
+    * Cuts the file in parts along its blocks, see {@link #plan(BlockLocation[], long)}.
+    */
+   List<Part> plan(HdfsPayload payload) throws IOException {
+      Path path = payload.getRawContent();
+      FileStatus status = payload.getFileSystem().getFileStatus(path);
+      return plan(payload.getFileSystem().getFileBlockLocations(status, 0, status.getLen()), status.getLen());
+   }
+
+   /**
+    * Cuts every block of the file in parts of about {@link #TARGET_PART_SIZE}. A block too small to make a part
+    * of its own, e.g. after an append, goes with the part after it.
+    *
+    * A file too large for {@link #MAX_PARTS} such parts gets larger parts instead, of at least a
+    * {@link #MAX_PARTS} - 1th of the file each, so that every part but the last counts for at least that much.
+    * When that is more than a block, consecutive blocks are put together, and a part is read from the hosts of
+    * the block that holds its middle.
+    *
+    * @throws IOException if the file is too large for a multipart upload.
+    */
+   static List<Part> plan(BlockLocation[] blocks, long fileLength) throws IOException {
+      if (fileLength > MAX_OBJECT_SIZE) {
+         throw new IOException("a file of " + fileLength + " bytes is larger than an object can be, " +
+               MAX_OBJECT_SIZE + " bytes");
+      }
+      long minimum = Math.max(MINIMUM_PART_SIZE, (fileLength + MAX_PARTS - 2) / (MAX_PARTS - 1));
+      long target = Math.max(TARGET_PART_SIZE, minimum);
+
+      List<Part> parts = new ArrayList<Part>();
+      int first = 0;
+      for (int i = 0; i < blocks.length; i++) {
+         long start = blocks[first].getOffset();
+         long length = blocks[i].getOffset() + blocks[i].getLength() - start;
+         boolean last = i == blocks.length - 1;
+         if (length < minimum && !last) {
+            continue;
+         }
+         long count = Math.max(1, Math.min((length + target / 2) / target, length / minimum));
+         for (long j = 0; j < count; j++) {
+            // as even as can be, so that no part falls below the minimum
+            long offset = start + length * j / count;
+            long end = start + length * (j + 1) / count;
+            if (end - offset > MAX_PART_SIZE) {
+               throw new IOException("part " + (parts.size() + 1) + " of " + (end - offset) + " bytes is larger " +
+                     "than a part can be, " + MAX_PART_SIZE + " bytes");
+            }
+            BlockLocation block = blockAt(blocks, first, i, offset + (end - offset) / 2);
+            parts.add(new Part(parts.size() + 1, offset, end - offset, block.getHosts()));
+         }
+         first = i + 1;
+      }
+      if (parts.isEmpty()) {
+         // An empty file still takes a part.
+         parts.add(new Part(1, 0, 0, new String[0]));
+      }
+      return parts;
+   }
+
+   /**
+    * @return the block among blocks[first] to blocks[last] that holds position.
+    */
+   private static BlockLocation blockAt(BlockLocation[] blocks, int first, int last, long position) {
+      for (int i = first; i < last; i++) {
+         if (position < blocks[i].getOffset() + blocks[i].getLength()) {
+            return blocks[i];
+         }
+      }
+      return blocks[last];
+   }
+
+   /**
+    * Gives every part to a host that holds its block: this host if it does, otherwise the host with the fewest
+    * bytes so far.
+    *
+    * @return the parts of every host.
+    */
+   static Map<String, List<Part>> assign(List<Part> parts, String localHost) {
+      Map<String, List<Part>> byHost = new LinkedHashMap<String, List<Part>>();
+      Map<String, Long> bytes = new HashMap<String, Long>();
+      for (Part part : parts) {
+         String host = null;
+         for (String candidate : part.hosts) {
+            if (candidate.equals(localHost)) {
+               host = candidate;
+               break;
+            }
+            if (host == null || load(bytes, candidate) < load(bytes, host)) {
+               host = candidate;
+            }
+         }
+         if (host == null) {
+            // Not stored on any datanode, e.g. a local or a zero length file.
+            host = localHost;
+         }
+         part.host = host;
+         bytes.put(host, load(bytes, host) + part.length);
+         if (!byHost.containsKey(host)) {
+            byHost.put(host, new ArrayList<Part>());
+         }
+         byHost.get(host).add(part);
+      }
+      return byHost;
+   }
+
+   private static long load(Map<String, Long> bytes, String host) {
+      Long load = bytes.get(host);
+      return load == null ? 0 : load;
+   }
+
+   /**
+    * Sends a part and checks that the ETag S3 returns, the MD5 of what it received, is the MD5 of what was read
+    * from the file, so that parts read at the same time cannot get their bytes mixed up unnoticed.
+    */
+   private Callable<String> uploadPart(final HdfsPayload payload, final String bucket, final String key,
+         final String uploadId, final Part part) {
+      return new Callable<String>() {
+         public String call() throws IOException {
+            final Payload slice = slicer.slice(payload, part.offset, part.length);
+            // the digest of the last stream, jclouds opens a new one to send the part again
+            final AtomicReference<MessageDigest> digest = new AtomicReference<MessageDigest>();
+            Payload hashed = new InputStreamSupplierPayload(new InputSupplier<InputStream>() {
+               public InputStream getInput() throws IOException {
+                  MessageDigest md5 = md5();
+                  digest.set(md5);
+                  return new DigestInputStream(slice.getInput(), md5);
+               }
+            });
+            hashed.getContentMetadata().setContentLength(part.length);
+            String eTag = s3.uploadPart(bucket, key, part.number, uploadId, hashed);
+            String sent = CryptoStreams.hex(digest.get().digest());
+            if (!eTag.replace("\"", "").equalsIgnoreCase(sent)) {
+               throw new IOException("part " + part.number + " at " + part.offset + " has ETag " + eTag +
+                     ", its bytes have MD5 " + sent);
+            }
+            return eTag;
+         }
+      };
+   }
+
+   private static MessageDigest md5() {
+      try {
+         return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private void abort(String bucket, String key, String uploadId) {
+      try {
+         s3.abortMultipartUpload(bucket, key, uploadId);
+      } catch (RuntimeException e) {
+         System.err.println("Could not abort upload " + uploadId + ": " + e.getMessage());
+      }
+   }
+
+   private static String localHost() {
+      try {
+         return InetAddress.getLocalHost().getHostName();
+      } catch (IOException e) {
+         return "localhost";
+      }
+   }
+}
@@ -31,6 +31,7 @@ import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.jclouds.aws.domain.Region;
+import org.jclouds.aws.s3.AWSS3Client;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.BlobStoreContextFactory;
@@ -49,14 +50,19 @@ import com.google.inject.Module;
  * Demonstrates the use of {@link BlobStore} to upload from HDFS to a blob container
  * 
  * Usage is: java MainApp \"provider\" \"identity\" \"credential\" \"hdfsUrl\"
- * \"containerName\" \"objectName\" plainhttp threadcount
+ * \"containerName\" \"objectName\" plainhttp threadcount locality
  * 
  * \"plainhttp\" and \"threadcound\" is optional if all the rest of parameters are omitted
+ * \"locality\" uploads the parts by datanode, threadcount at a time per datanode, see {@link LocalityUploader};
+ * it needs aws-s3. An hdfsUrl of a directory uploads every file below it, threadcount files at a time, named
+ * objectName/ followed by their path below the directory; an objectName of / leaves the prefix out.
  */
 public class MainApp extends Configured {
 
    public static int PARAMETERS = 6;
-   public static String INVALID_SYNTAX = "Invalid number of parameters. Syntax is: \"provider\" \"identity\" \"credential\" \"localFileName\" \"containerName\" \"objectName\" plainhttp threadcount";
+   public static String INVALID_SYNTAX = "Invalid number of parameters. Syntax is: \"provider\" \"identity\" \"credential\" \"localFileName\" \"containerName\" \"objectName\" plainhttp threadcount locality";
+
+   public static int DEFAULT_THREADS = 4;
 
    public final static Properties PLAIN_HTTP_ENDPOINTS = new Properties();
 
@@ -113,11 +119,12 @@ public class MainApp extends Configured {
     * @param objectName
     * @param plainhttp
     * @param threadcount
+    * @param locality
     * @throws IOException
     */
    private void upload(String provider, String identity,
          String credential, String hdfsUrl, String containerName,
-         String objectName, boolean plainhttp, String threadcount)
+         String objectName, boolean plainhttp, String threadcount, boolean locality)
          throws IOException {
       // Init
       Properties overrides = new Properties();
@@ -134,13 +141,34 @@ public class MainApp extends Configured {
          long start = System.currentTimeMillis();
          Configuration conf = getConf();
          if (conf == null) {
-            conf = new Configuration();
+            // -Dhdfs.shortcircuit=/path/of/dn_socket reads local blocks from their files, see HdfsPayload
+            conf = HdfsPayload.configureReads(new Configuration());
             setConf(conf);
          }
          // Create Container
          BlobStore blobStore = context.getBlobStore(); // it can be changed to sync
          // BlobStore
          blobStore.createContainerInLocation(null, containerName);
+         Path path = new Path(hdfsUrl);
+         int threads = threadcount != null ? Integer.parseInt(threadcount) : DEFAULT_THREADS;
+         if (path.getFileSystem(conf).getFileStatus(path).isDir()) {
+            // every file under the directory, threadcount files at a time, objectName/ in front of their paths
+            String prefix = "/".equals(objectName) ? "" : objectName.endsWith("/") ? objectName : objectName + "/";
+            long length = new DirectoryUploader(blobStore, conf, threads).upload(path, containerName, prefix);
+
+            printSpeed("Sucessfully uploaded", start, length);
+            return;
+         }
+         if (locality) {
+            HdfsPayload payload = new HdfsPayload(path, conf);
+            payload.getContentMetadata().setContentType(MediaType.APPLICATION_OCTET_STREAM);
+            long length = payload.getContentMetadata().getContentLength();
+            AWSS3Client s3 = AWSS3Client.class.cast(context.getProviderSpecificContext().getApi());
+            new LocalityUploader(s3, threads).upload(payload, containerName, objectName);
+
+            printSpeed("Sucessfully uploaded", start, length);
+            return;
+         }
          Blob blob = blobStore.blobBuilder(objectName).payload(
                new HdfsPayload(new Path(hdfsUrl), conf))
                .contentType(MediaType.APPLICATION_OCTET_STREAM)
@@ -173,10 +201,13 @@ public class MainApp extends Configured {
       String objectName = args[5];
       boolean plainhttp = args.length >= 7 && "plainhttp".equals(args[6]);
       String threadcount = args.length >= 8 ? args[7] : null;
+      boolean locality = args.length >= 9 && "locality".equals(args[8]);
+      if (locality && !"aws-s3".equals(provider))
+         throw new IllegalArgumentException("locality needs the multipart upload of aws-s3, not " + provider);
 
       MainApp app = new MainApp();
       app.upload(provider, identity, credential, hdfsUrl, containerName,
-            objectName, plainhttp, threadcount);
+            objectName, plainhttp, threadcount, locality);
       System.exit(0);
    }
 }
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.jclouds.examples.blobstore.hdfs.io.HdfsInputStream;
+import org.jclouds.examples.blobstore.hdfs.io.payloads.HdfsPayload;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.LimitInputStream;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Reads an HDFS file the ways the uploads do, without sending it anywhere, and reports MB/s and the allocation
+ * rate of each: "whole" reads the file with one stream, as a simple upload does, and "parts" reads it in parts of
+ * 32MB, threads parts at a time, as a multipart upload does. Each is read through the plain stream of the file,
+ * and through the ByteBuffer reads of {@link HdfsInputStream}, which the payloads use. Bytes are copied through a
+ * buffer of 4kB, as jclouds does into the connection.
+ *
+ * Run it on a datanode holding the blocks of the file, once as is and once with -Dhdfs.shortcircuit set to the
+ * domain socket of the datanode, to compare reads through the datanode with short-circuit reads. Allocation is
+ * counted per reading thread, so it leaves out the threads of the HDFS client itself.
+ *
+ * Usage is: java ReadBenchmark hdfsUrl threads iterations
+ *
+ * threads and iterations are optional and default to 4 and 3.
+ */
+public class ReadBenchmark {
+   private static final long MB = 1024 * 1024;
+   private static final long PART_SIZE = 32 * MB;
+   // where the bytes go instead of a connection
+   private static final OutputStream NULL = new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+   };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1)
+         throw new IllegalArgumentException("Syntax is: hdfsUrl threads iterations");
+      Path path = new Path(args[0]);
+      int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+      int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+      HdfsPayload payload = new HdfsPayload(path, HdfsPayload.configureReads(new Configuration()));
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         run(payload, threads, iterations, executor);
+      } finally {
+         executor.shutdownNow();
+      }
+      System.exit(0);
+   }
+
+   private static void run(HdfsPayload payload, int threads, int iterations, ExecutorService executor)
+         throws InterruptedException, ExecutionException {
+      long length = payload.getContentMetadata().getContentLength();
+      System.out.printf("%d MB file, %d threads, %d iterations, short-circuit %s%n", length / MB, threads,
+            iterations, payload.getConfiguration().getBoolean(HdfsPayload.SHORT_CIRCUIT, false));
+      System.out.println("read    through       MB/s  alloc MB/s");
+      for (boolean parts : new boolean[] { false, true }) {
+         for (boolean buffers : new boolean[] { false, true }) {
+            run(payload, parts ? PART_SIZE : length, buffers, iterations, executor);
+         }
+      }
+   }
+
+   private static void run(HdfsPayload payload, long partSize, boolean buffers, int iterations,
+         ExecutorService executor) throws InterruptedException, ExecutionException {
+      long length = payload.getContentMetadata().getContentLength();
+      AtomicLong allocated = new AtomicLong();
+
+      // Warm up.
+      read(payload, partSize, buffers, executor, allocated);
+
+      allocated.set(0);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+         read(payload, partSize, buffers, executor, allocated);
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%-6s  %-11s  %6.1f  %10.1f%n", partSize < length ? "parts" : "whole",
+            buffers ? "bytebuffers" : "stream", length * iterations / seconds / MB, allocated.get() / seconds / MB);
+   }
+
+   /**
+    * Reads the payload in parts of partSize, which is its length for a single read.
+    */
+   private static void read(HdfsPayload payload, long partSize, boolean buffers, ExecutorService executor,
+         AtomicLong allocated) throws InterruptedException, ExecutionException {
+      long length = payload.getContentMetadata().getContentLength();
+      List<Future<Long>> reads = new ArrayList<Future<Long>>();
+      for (long offset = 0; offset < length; offset += partSize) {
+         reads.add(executor.submit(read(payload, offset, Math.min(partSize, length - offset), buffers, allocated)));
+      }
+      for (Future<Long> read : reads) {
+         read.get();
+      }
+   }
+
+   private static Callable<Long> read(final HdfsPayload payload, final long offset, final long length,
+         final boolean buffers, final AtomicLong allocated) {
+      return new Callable<Long>() {
+         public Long call() throws IOException {
+            ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long id = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(id);
+            FSDataInputStream file = payload.getFileSystem().open(payload.getRawContent());
+            InputStream in = buffers ? new HdfsInputStream(file, length) : new LimitInputStream(file, length);
+            try {
+               file.seek(offset);
+               return ByteStreams.copy(in, NULL);
+            } finally {
+               Closeables.closeQuietly(in);
+               allocated.addAndGet(threads.getThreadAllocatedBytes(id) - before);
+            }
+         }
+      };
+   }
+}
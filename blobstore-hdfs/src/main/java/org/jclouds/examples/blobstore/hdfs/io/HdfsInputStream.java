@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.io.ByteBufferPool;
+import org.apache.hadoop.io.ElasticByteBufferPool;
+
+/**
+ * Reads a range of an HDFS file through the ByteBuffer reads of the HDFS client, rather than through the heap
+ * buffers of its stream.
+ *
+ * Every read asks the client for a buffer of up to {@link #BUFFER_SIZE} bytes with
+ * {@link FSDataInputStream#read(ByteBufferPool, int, EnumSet)}. A block cached by the datanode of this host is
+ * mapped from memory without any copy, when the client reads short-circuit; any other block is read into a direct
+ * buffer of a shared pool, from the local block file with short-circuit reads, from the datanode otherwise.
+ * Checksums are verified either way. The only copy left on the heap is the one into the array of the caller,
+ * which is how jclouds takes a payload on its way to the connection.
+ *
+ * A buffer is given back to the client as soon as it is drained, and on {@link #close()}.
+ */
+public class HdfsInputStream extends InputStream {
+   public static final int BUFFER_SIZE = 1024 * 1024;
+   // direct buffers, shared by all streams and kept for the next read once given back
+   private static final ByteBufferPool POOL = new ElasticByteBufferPool();
+   private static final EnumSet<ReadOption> VERIFY_CHECKSUMS = EnumSet.noneOf(ReadOption.class);
+
+   private final FSDataInputStream in;
+   private long remaining;
+   private ByteBuffer buffer;
+
+   /**
+    * @param in the file, positioned at the start of the range
+    * @param length the length of the range; the stream ends there, or at the end of the file if that comes first
+    */
+   public HdfsInputStream(FSDataInputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+   }
+
+   @Override
+   public int read() throws IOException {
+      if (!fill())
+         return -1;
+      return buffer.get() & 0xff;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+         return 0;
+      if (!fill())
+         return -1;
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+   }
+
+   @Override
+   public int available() {
+      return buffer == null ? 0 : buffer.remaining();
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         release();
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * @return false at the end of the range; otherwise the buffer holds at least one byte.
+    */
+   private boolean fill() throws IOException {
+      while (buffer == null || !buffer.hasRemaining()) {
+         release();
+         if (remaining <= 0)
+            return false;
+         buffer = in.read(POOL, (int) Math.min(BUFFER_SIZE, remaining), VERIFY_CHECKSUMS);
+         if (buffer == null) {
+            // the file is shorter than the range
+            remaining = 0;
+            return false;
+         }
+         remaining -= buffer.remaining();
+      }
+      return true;
+   }
+
+   private void release() {
+      if (buffer != null) {
+         in.releaseBuffer(buffer);
+         buffer = null;
+      }
+   }
+}
@@ -32,8 +32,16 @@ import org.jclouds.io.payloads.InputStreamSupplierPayload;
 
 import com.google.common.io.Closeables;
 import com.google.common.io.InputSupplier;
-import com.google.common.io.LimitInputStream;
 
+/**
+ * Slices {@link HdfsPayload}s so that the slices can be read at the same time.
+ *
+ * Every stream of a slice is a stream of its own on the file, opened and positioned at the start of the slice
+ * when the slice is read, and closed with it. Parts sent in parallel therefore never share a file position, and a
+ * part that is sent again, after an error, reads its bytes from the start again. Positional reads of a shared
+ * stream would do as well but, in HDFS, every one of them sets up a new block reader, which costs more than
+ * opening the file once per part. The slice is read into direct buffers, see {@link HdfsInputStream}.
+ */
 @Singleton
 public class HdfsPayloadSlicer extends BasePayloadSlicer {
 
@@ -44,19 +52,17 @@ public class HdfsPayloadSlicer extends BasePayloadSlicer {
       checkArgument(length >= 0, "length is negative");
       Payload returnVal;
       if (input instanceof HdfsPayload) {
-         returnVal = doSlice(
-               (FSDataInputStream) ((HdfsPayload) input).getInput(), offset,
-               length);
+         returnVal = doSlice((HdfsPayload) input, offset, length);
          return copyMetadataAndSetLength(input, returnVal, length);
       } else {
          return super.slice(input, offset, length);
       }
    }
 
-   protected Payload doSlice(final FSDataInputStream inputStream,
-         final long offset, final long length) {
+   protected Payload doSlice(final HdfsPayload payload, final long offset, final long length) {
       return new InputStreamSupplierPayload(new InputSupplier<InputStream>() {
          public InputStream getInput() throws IOException {
+            FSDataInputStream inputStream = payload.getFileSystem().open(payload.getRawContent());
             if (offset > 0) {
                try {
                   inputStream.seek(offset);
@@ -65,7 +71,7 @@ public class HdfsPayloadSlicer extends BasePayloadSlicer {
                   throw e;
                }
             }
-            return new LimitInputStream(inputStream, length);
+            return new HdfsInputStream(inputStream, length);
          }
       });
    }
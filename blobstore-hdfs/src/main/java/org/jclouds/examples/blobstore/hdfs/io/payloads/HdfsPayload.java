@@ -22,12 +22,42 @@ import java.io.InputStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.jclouds.examples.blobstore.hdfs.io.HdfsInputStream;
 import org.jclouds.io.payloads.BasePayload;
 
 import com.google.common.base.Throwables;
 
 public class HdfsPayload extends BasePayload<Path> {
 
+   /**
+    * Has the client read the blocks this host holds from their files, rather than through the datanode over a
+    * socket. The datanode hands the files over on {@link #DOMAIN_SOCKET_PATH}, and both ends need the native
+    * hadoop library; without it the client logs a warning and reads through the datanode.
+    */
+   public static final String SHORT_CIRCUIT = "dfs.client.read.shortcircuit";
+   /**
+    * The UNIX domain socket of the datanode, the same as in its hdfs-site.xml.
+    */
+   public static final String DOMAIN_SOCKET_PATH = "dfs.domain.socket.path";
+   /**
+    * System property with the domain socket of the datanode, which turns short-circuit reads on, see
+    * {@link #configureReads(Configuration)}.
+    */
+   public static final String SHORT_CIRCUIT_PROPERTY = "hdfs.shortcircuit";
+
+   /**
+    * Turns short-circuit reads on in configuration when run with -Dhdfs.shortcircuit=/path/of/dn_socket. A file
+    * system caches its client, so this has to be done before the first one is got.
+    */
+   public static Configuration configureReads(Configuration configuration) {
+      String socket = System.getProperty(SHORT_CIRCUIT_PROPERTY);
+      if (socket != null) {
+         configuration.setBoolean(SHORT_CIRCUIT, true);
+         configuration.set(DOMAIN_SOCKET_PATH, socket);
+      }
+      return configuration;
+   }
+
    private Configuration configuration;
 
    public HdfsPayload(final Path content, final Configuration configuration)
@@ -43,9 +73,13 @@ public class HdfsPayload extends BasePayload<Path> {
       getContentMetadata().setContentLength(length);
    }
 
+   /**
+    * @return the whole file, read into direct buffers, see {@link HdfsInputStream}.
+    */
    public InputStream getInput() {
       try {
-         return content.getFileSystem(configuration).open(content);
+         return new HdfsInputStream(content.getFileSystem(configuration).open(content),
+               getContentMetadata().getContentLength());
       } catch (IOException e) {
          Throwables.propagate(e);
          return null;
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.jclouds.examples.blobstore.hdfs.LocalityUploader.Part;
+import org.jclouds.examples.blobstore.hdfs.io.payloads.HdfsPayload;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LocalityUploaderTest {
+   private static final long MB = 1024 * 1024;
+   private static final long BLOCK_SIZE = 8 * MB;
+
+   private static Configuration conf;
+   private static MiniDFSCluster cluster;
+
+   @BeforeClass
+   public static void startCluster() throws IOException {
+      System.setProperty("test.build.data", "target/test/data");
+      conf = new Configuration();
+      cluster = new MiniDFSCluster(conf, 3, true, null);
+   }
+
+   @AfterClass
+   public static void stopCluster() {
+      cluster.shutdown();
+   }
+
+   @Test
+   public void partsFollowTheBlocks() throws IOException {
+      long length = 3 * BLOCK_SIZE + BLOCK_SIZE / 2;
+      Path path = write(cluster.getFileSystem(), new Path("/locality"), random((int) length));
+      HdfsPayload payload = new HdfsPayload(path, conf);
+      FileSystem fs = payload.getFileSystem();
+      BlockLocation[] blocks = fs.getFileBlockLocations(fs.getFileStatus(path), 0, length);
+      assertEquals(4, blocks.length);
+
+      List<Part> parts = new LocalityUploader(null, 1).plan(payload);
+      assertCovers(parts, length);
+      for (Part part : parts) {
+         // within one block, and read from the hosts of that block
+         BlockLocation block = blocks[(int) (part.offset / BLOCK_SIZE)];
+         assertTrue(part.offset + part.length <= block.getOffset() + block.getLength());
+         assertArrayEquals(block.getHosts(), part.hosts);
+      }
+
+      Map<String, List<Part>> byHost = LocalityUploader.assign(parts, "elsewhere");
+      for (Map.Entry<String, List<Part>> host : byHost.entrySet()) {
+         for (Part part : host.getValue()) {
+            assertEquals(host.getKey(), part.host);
+            assertTrue(Arrays.asList(part.hosts).contains(part.host));
+         }
+      }
+   }
+
+   @Test
+   public void largeFilesStayUnderThePartLimit() throws IOException {
+      // 2.5TB in blocks of 128MB would be 80000 parts of 32MB
+      int count = 20000;
+      long length = (long) count * 128 * MB;
+      List<Part> parts = LocalityUploader.plan(blocks(count, 128 * MB), length);
+      assertTrue(parts.size() + " parts", parts.size() <= LocalityUploader.MAX_PARTS);
+      assertCovers(parts, length);
+      for (Part part : parts) {
+         assertTrue(part.length <= LocalityUploader.MAX_PART_SIZE);
+      }
+   }
+
+   @Test(expected = IOException.class)
+   public void filesLargerThanAnObjectAreRefused() throws IOException {
+      int count = (int) (LocalityUploader.MAX_OBJECT_SIZE / (128 * MB)) + 1;
+      LocalityUploader.plan(blocks(count, 128 * MB), (long) count * 128 * MB);
+   }
+
+   /**
+    * Checks that the parts are numbered from 1 and follow each other up to length, none of them below the
+    * minimum but the last.
+    */
+   private static void assertCovers(List<Part> parts, long length) {
+      long position = 0;
+      for (int i = 0; i < parts.size(); i++) {
+         Part part = parts.get(i);
+         assertEquals(i + 1, part.number);
+         assertEquals(position, part.offset);
+         if (i < parts.size() - 1) {
+            assertTrue(part.length >= LocalityUploader.MINIMUM_PART_SIZE);
+         }
+         position += part.length;
+      }
+      assertEquals(length, position);
+   }
+
+   private static BlockLocation[] blocks(int count, long size) {
+      BlockLocation[] blocks = new BlockLocation[count];
+      for (int i = 0; i < count; i++) {
+         String host = "datanode" + (i % 5);
+         blocks[i] = new BlockLocation(new String[] { host + ":50010" }, new String[] { host }, i * size, size);
+      }
+      return blocks;
+   }
+
+   private static byte[] random(int length) {
+      byte[] data = new byte[length];
+      new Random(length).nextBytes(data);
+      return data;
+   }
+
+   /**
+    * Writes data in blocks of {@link #BLOCK_SIZE}, on three datanodes.
+    */
+   private static Path write(FileSystem fs, Path path, byte[] data) throws IOException {
+      FSDataOutputStream out = fs.create(path, true, 4096, (short) 3, BLOCK_SIZE);
+      try {
+         out.write(data);
+      } finally {
+         out.close();
+      }
+      return fs.makeQualified(path);
+   }
+}
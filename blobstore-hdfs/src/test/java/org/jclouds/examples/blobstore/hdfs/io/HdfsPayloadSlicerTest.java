@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.hdfs.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.jclouds.examples.blobstore.hdfs.io.payloads.HdfsPayload;
+import org.jclouds.io.Payload;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.io.Closeables;
+
+public class HdfsPayloadSlicerTest {
+   private static final int MB = 1024 * 1024;
+   private static final int BLOCK_SIZE = 8 * MB;
+   // slices that start and end anywhere in the blocks, some across two blocks
+   private static final int SLICE_SIZE = 3 * MB + 4099;
+
+   private static MiniDFSCluster cluster;
+   private static byte[] data;
+   private static HdfsPayload payload;
+
+   @BeforeClass
+   public static void writeFile() throws IOException {
+      System.setProperty("test.build.data", "target/test/data");
+      Configuration conf = new Configuration();
+      cluster = new MiniDFSCluster(conf, 3, true, null);
+      data = new byte[2 * BLOCK_SIZE + 5 * MB];
+      new Random(0).nextBytes(data);
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/slices");
+      FSDataOutputStream out = fs.create(path, true, 4096, (short) 3, BLOCK_SIZE);
+      try {
+         out.write(data);
+      } finally {
+         out.close();
+      }
+      payload = new HdfsPayload(fs.makeQualified(path), conf);
+   }
+
+   @AfterClass
+   public static void stopCluster() {
+      cluster.shutdown();
+   }
+
+   @Test
+   public void payloadReadsTheWholeFile() throws IOException {
+      // one byte, then chunks that do not line up with the buffers of the HDFS client
+      InputStream in = payload.getInput();
+      try {
+         assertEquals(data[0] & 0xff, in.read());
+      } catch (IOException e) {
+         in.close();
+         throw e;
+      }
+      byte[] rest = read(in, 1000);
+      assertEquals(data.length - 1, rest.length);
+      assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), rest);
+   }
+
+   @Test
+   public void slicesReadInParallelHoldTheirOwnBytes() throws Exception {
+      List<Payload> slices = slices();
+      ExecutorService executor = Executors.newFixedThreadPool(slices.size());
+      try {
+         List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>();
+         for (final Payload slice : slices) {
+            reads.add(executor.submit(new Callable<byte[]>() {
+               public byte[] call() throws IOException {
+                  return read(slice.getInput(), 1000);
+               }
+            }));
+         }
+         for (int i = 0; i < slices.size(); i++) {
+            assertArrayEquals("slice " + i, expected(i), reads.get(i).get());
+         }
+      } finally {
+         executor.shutdownNow();
+      }
+   }
+
+   @Test
+   public void slicesReadInTurnHoldTheirOwnBytes() throws IOException {
+      // a little of every slice in turn, on one thread, so that any shared position would show
+      List<Payload> slices = slices();
+      List<InputStream> streams = new ArrayList<InputStream>();
+      List<ByteArrayOutputStream> outs = new ArrayList<ByteArrayOutputStream>();
+      try {
+         for (Payload slice : slices) {
+            streams.add(slice.getInput());
+            outs.add(new ByteArrayOutputStream());
+         }
+         byte[] buffer = new byte[4096];
+         boolean reading = true;
+         while (reading) {
+            reading = false;
+            for (int i = 0; i < streams.size(); i++) {
+               int count = streams.get(i).read(buffer);
+               if (count > 0) {
+                  outs.get(i).write(buffer, 0, count);
+                  reading = true;
+               }
+            }
+         }
+      } finally {
+         for (InputStream stream : streams) {
+            Closeables.closeQuietly(stream);
+         }
+      }
+      for (int i = 0; i < slices.size(); i++) {
+         assertArrayEquals("slice " + i, expected(i), outs.get(i).toByteArray());
+      }
+   }
+
+   @Test
+   public void sliceReadAgainStartsOver() throws IOException {
+      // as when jclouds sends a part again after an error
+      Payload slice = slices().get(2);
+      InputStream first = slice.getInput();
+      try {
+         assertEquals(1000, first.read(new byte[1000]));
+         assertArrayEquals(expected(2), read(slice.getInput(), 65536));
+      } finally {
+         first.close();
+      }
+   }
+
+   private static List<Payload> slices() {
+      HdfsPayloadSlicer slicer = new HdfsPayloadSlicer();
+      List<Payload> slices = new ArrayList<Payload>();
+      for (int offset = 0; offset < data.length; offset += SLICE_SIZE) {
+         slices.add(slicer.slice(payload, offset, Math.min(SLICE_SIZE, data.length - offset)));
+      }
+      return slices;
+   }
+
+   private static byte[] expected(int slice) {
+      int offset = slice * SLICE_SIZE;
+      return Arrays.copyOfRange(data, offset, Math.min(offset + SLICE_SIZE, data.length));
+   }
+
+   private static byte[] read(InputStream in, int chunk) throws IOException {
+      try {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[chunk];
+         int count;
+         while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+         }
+         return out.toByteArray();
+      } finally {
+         in.close();
+      }
+   }
+}
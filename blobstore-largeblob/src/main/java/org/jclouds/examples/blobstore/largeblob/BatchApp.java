@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.core.MediaType;
+
+import org.jclouds.Constants;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+
+import com.google.common.io.Files;
+
+/**
+ * Uploads many large files with one context, their parts sharing one pool of threads and one bandwidth cap.
+ *
+ * Usage is: java BatchApp \"provider\" \"identity\" \"credential\" \"containerName\" \"files\" plainhttp threadcount
+ * MBperSecond
+ *
+ * \"files\" is either @listFile, a file with one path per line, or a glob of file names in a directory, e.g.
+ * \"/backups/*.dump\" (quoted, so that the shell leaves it alone). Objects are named after the paths in the list,
+ * or after the file names for a glob. \"plainhttp\", \"threadcount\" and \"MBperSecond\" are optional; threadcount
+ * is the number of parts in flight over all files, MBperSecond caps the bandwidth of all files together and is
+ * unlimited by default. Each file can be resumed on its own, as with MainApp.
+ */
+public class BatchApp {
+
+   public static int PARAMETERS = 5;
+   public static String INVALID_SYNTAX = "Invalid number of parameters. Syntax is: \"provider\" \"identity\" \"credential\" \"containerName\" \"files\" plainhttp threadcount MBperSecond";
+
+   public static void main(String[] args) throws IOException {
+
+      if (args.length < PARAMETERS)
+         throw new IllegalArgumentException(INVALID_SYNTAX);
+
+      // Args
+
+      String providerId = args[0];
+      String identity = args[1];
+      String credential = args[2];
+      final String containerName = args[3];
+      List<Upload> uploads = listFiles(args[4]);
+      boolean plainhttp = args.length >= 6 && "plainhttp".equals(args[5]);
+      int threads = args.length >= 7 ? Integer.parseInt(args[6]) : MainApp.DEFAULT_THREADS;
+      long bytesPerSecond = args.length >= 8 ? (long) (Double.parseDouble(args[7]) * 1048576) : 0;
+
+      // Init
+      Properties overrides = new Properties();
+      if (plainhttp)
+         overrides.putAll(MainApp.PLAIN_HTTP_ENDPOINTS); // default is https
+      // every part holds a connection while it is sent, whichever file it belongs to
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(threads));
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(threads));
+      BlobStoreContext context = ContextBuilder.newBuilder(providerId).credentials(identity, credential)
+            .modules(MainApp.MODULES).overrides(overrides).buildView(BlobStoreContext.class);
+      final PartScheduler scheduler = new PartScheduler(threads, bytesPerSecond);
+      // files are only waiting for their parts, as many of them as parts in flight keep the pool busy with small
+      // files and between large ones
+      ExecutorService files = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, uploads.size())));
+
+      int status = 1;
+      try {
+         long start = System.currentTimeMillis();
+         final BlobStore blobStore = context.getBlobStore();
+         blobStore.createContainerInLocation(null, containerName);
+         // -Dlargeblob.buffers stages the parts off-heap, see DirectBufferPool
+         final DirectBufferPool buffers = DirectBufferPool.fromSystemProperty((int) MultipartUploader.TARGET_PART_SIZE);
+         final MultipartUploader uploader = new MultipartUploader(blobStore, scheduler, 0, buffers);
+
+         List<Future<String>> futures = new ArrayList<Future<String>>();
+         for (final Upload upload : uploads) {
+            futures.add(files.submit(new Callable<String>() {
+               @Override
+               public String call() throws IOException {
+                  long fileStart = System.currentTimeMillis();
+                  Blob blob = blobStore.blobBuilder(upload.name)
+                        .payload(scheduler.throttle(Files.asByteSource(upload.file)))
+                        .contentLength(upload.file.length())
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM).build();
+                  String eTag = uploader.upload(containerName, blob, upload.file);
+                  MainApp.printSpeed("Uploaded " + upload.name + " eTag(" + eTag + ")", fileStart,
+                        upload.file.length());
+                  return eTag;
+               }
+            }));
+         }
+
+         long length = 0;
+         int failed = 0;
+         for (int i = 0; i < uploads.size(); i++) {
+            try {
+               futures.get(i).get();
+               length += uploads.get(i).file.length();
+            } catch (ExecutionException e) {
+               failed++;
+               System.err.println("Could not upload " + uploads.get(i).file + ": " + e.getCause());
+            }
+         }
+         MainApp.printSpeed("Sucessfully uploaded " + (uploads.size() - failed) + " of " + uploads.size() +
+               " files", start, length);
+         uploader.getTimeline().printSummary();
+         if (failed == 0)
+            status = 0;
+      } catch (InterruptedException e) {
+         System.err.println("Interrupted");
+      } catch (RuntimeException exception) {
+         System.err.println(exception.getMessage());
+         exception.printStackTrace();
+      } finally {
+         files.shutdownNow();
+         scheduler.shutdown();
+         // Close connecton
+         context.close();
+      }
+      System.exit(status);
+
+   }
+
+   /**
+    * A file and the name of its object.
+    */
+   static class Upload {
+      final File file;
+      final String name;
+
+      Upload(File file, String name) {
+         this.file = file;
+         this.name = name;
+      }
+   }
+
+   /**
+    * @return the files of a @listFile or of a glob in a directory.
+    */
+   static List<Upload> listFiles(String files) throws IOException {
+      List<Upload> uploads = new ArrayList<Upload>();
+      if (files.startsWith("@")) {
+         for (String line : Files.readLines(new File(files.substring(1)), Charset.forName("UTF-8"))) {
+            String path = line.trim();
+            if (!path.isEmpty()) {
+               // an object name has no leading slash
+               uploads.add(new Upload(new File(path), path.replaceFirst("^(\\./|/)+", "")));
+            }
+         }
+      } else {
+         Path glob = Paths.get(files);
+         Path directory = glob.getParent() != null ? glob.getParent() : Paths.get(".");
+         DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(directory,
+               glob.getFileName().toString());
+         try {
+            for (Path path : stream) {
+               if (java.nio.file.Files.isRegularFile(path)) {
+                  uploads.add(new Upload(path.toFile(), path.getFileName().toString()));
+               }
+            }
+         } finally {
+            stream.close();
+         }
+      }
+      if (uploads.isEmpty()) {
+         throw new IllegalArgumentException("no files in " + files);
+      }
+      return uploads;
+   }
+}
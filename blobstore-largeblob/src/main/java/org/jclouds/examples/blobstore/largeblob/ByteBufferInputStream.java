@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the bytes between the position and the limit of a buffer, heap or direct, moving its position.
+ */
+class ByteBufferInputStream extends InputStream {
+   private final ByteBuffer buffer;
+
+   ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+   }
+
+   @Override
+   public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+   }
+
+   @Override
+   public int read(byte[] bytes, int off, int len) {
+      if (len == 0) {
+         return 0;
+      }
+      if (!buffer.hasRemaining()) {
+         return -1;
+      }
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(bytes, off, count);
+      return count;
+   }
+
+   @Override
+   public int available() {
+      return buffer.remaining();
+   }
+}
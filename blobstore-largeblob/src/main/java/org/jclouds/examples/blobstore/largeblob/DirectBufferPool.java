@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.common.io.ByteSource;
+
+/**
+ * A fixed number of direct buffers of the same size, to stage parts outside of the heap.
+ *
+ * A part staged on the heap costs a byte array of the part size for as long as it is sent, and with a few threads
+ * and parts of tens of MB that quickly adds up to hundreds of MB of short-lived arrays that the collector has to
+ * copy or sweep. Direct buffers are allocated once, the first time they are needed, and then handed from part to
+ * part; since {@link #acquire()} waits for a free buffer, the number of buffers also caps how many parts are in
+ * memory at once, however many threads there are.
+ */
+public class DirectBufferPool {
+   /**
+    * The number of buffers for the examples to stage parts in, 0 or unset to stream parts from the file.
+    */
+   public static final String PROPERTY = "largeblob.buffers";
+
+   private final int capacity;
+   private final int bufferSize;
+   private final BlockingQueue<ByteBuffer> free;
+   private int allocated;
+
+   public DirectBufferPool(int capacity, int bufferSize) {
+      if (capacity < 1 || bufferSize < 1) {
+         throw new IllegalArgumentException("need at least one buffer of at least one byte, not " + capacity +
+               " of " + bufferSize);
+      }
+      this.capacity = capacity;
+      this.bufferSize = bufferSize;
+      this.free = new LinkedBlockingQueue<ByteBuffer>(capacity);
+   }
+
+   /**
+    * Takes a free buffer, allocating it if fewer than the capacity were allocated so far, otherwise waiting for
+    * one to be released.
+    *
+    * @return a cleared buffer of {@link #getBufferSize()} bytes.
+    */
+   public ByteBuffer acquire() throws InterruptedException {
+      ByteBuffer buffer = free.poll();
+      if (buffer == null) {
+         buffer = allocate();
+      }
+      if (buffer == null) {
+         buffer = free.take();
+      }
+      buffer.clear();
+      return buffer;
+   }
+
+   /**
+    * Gives a buffer from {@link #acquire()} back; it must not be used afterwards.
+    */
+   public void release(ByteBuffer buffer) {
+      if (!free.offer(buffer)) {
+         throw new IllegalStateException("more buffers released than acquired");
+      }
+   }
+
+   /**
+    * @return a pool with as many buffers of the given size as the {@link #PROPERTY} system property says, or null
+    *         if it is not set.
+    */
+   public static DirectBufferPool fromSystemProperty(int bufferSize) {
+      int capacity = Integer.getInteger(PROPERTY, 0);
+      return capacity > 0 ? new DirectBufferPool(capacity, bufferSize) : null;
+   }
+
+   public int getCapacity() {
+      return capacity;
+   }
+
+   public int getBufferSize() {
+      return bufferSize;
+   }
+
+   /**
+    * @return the off-heap memory taken by the pool so far.
+    */
+   public synchronized long getAllocatedBytes() {
+      return (long) allocated * bufferSize;
+   }
+
+   /**
+    * @return the bytes between the position and the limit of the buffer, which must not change while the source
+    *         is in use. Every stream starts again at the position, so a request can be retried.
+    */
+   public static ByteSource asByteSource(final ByteBuffer buffer) {
+      return new ByteSource() {
+         @Override
+         public long size() {
+            return buffer.remaining();
+         }
+
+         @Override
+         public InputStream openStream() {
+            return new ByteBufferInputStream(buffer.duplicate());
+         }
+      };
+   }
+
+   private synchronized ByteBuffer allocate() {
+      if (allocated == capacity) {
+         return null;
+      }
+      ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+      allocated++;
+      return buffer;
+   }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.jclouds.Constants;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStoreContext;
+
+/**
+ * Downloads a large object with parallel range requests.
+ *
+ * Usage is: java DownloadApp \"provider\" \"identity\" \"credential\" \"containerName\" \"objectName\"
+ * \"localFileName\" plainhttp threadcount
+ *
+ * \"plainhttp\" and \"threadcount\" are optional. Run it again after a failure to download only the missing
+ * chunks. Any provider or api id works, e.g. \"filesystem\" with -Djclouds.filesystem.basedir=/some/dir.
+ * An object uploaded with -Dlargeblob.gzip or -Dlargeblob.keyFile is decoded when downloaded with the same.
+ */
+public class DownloadApp {
+
+   public static int PARAMETERS = 6;
+   public static String INVALID_SYNTAX = "Invalid number of parameters. Syntax is: \"provider\" \"identity\" \"credential\" \"containerName\" \"objectName\" \"localFileName\" plainhttp threadcount";
+
+   public static void main(String[] args) throws IOException {
+
+      if (args.length < PARAMETERS)
+         throw new IllegalArgumentException(INVALID_SYNTAX);
+
+      // Args
+
+      String providerId = args[0];
+      String identity = args[1];
+      String credential = args[2];
+      String containerName = args[3];
+      String objectName = args[4];
+      String fileName = args[5];
+      boolean plainhttp = args.length >= 7 && "plainhttp".equals(args[6]);
+      int threads = args.length >= 8 ? Integer.parseInt(args[7]) : MainApp.DEFAULT_THREADS;
+
+      // Init
+      Properties overrides = new Properties();
+      if (plainhttp)
+         overrides.putAll(MainApp.PLAIN_HTTP_ENDPOINTS); // default is https
+      // every chunk holds a connection while it is read
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(threads));
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(threads));
+      BlobStoreContext context = ContextBuilder.newBuilder(providerId).credentials(identity, credential)
+            .modules(MainApp.MODULES).overrides(overrides).buildView(BlobStoreContext.class);
+
+      int status = 1;
+      try {
+         long start = System.currentTimeMillis();
+         // frames written with -Dlargeblob.gzip or -Dlargeblob.keyFile are decoded with the same properties
+         FrameCodec codec = FrameCodec.fromSystemProperties();
+         File file = new File(fileName);
+         File download = codec != null ? new File(fileName + ".encoded") : file;
+         long length = new ParallelDownloader(context.getBlobStore(), threads)
+               .download(containerName, objectName, download);
+         MainApp.printSpeed("Sucessfully downloaded " + objectName, start, length);
+         if (codec != null) {
+            start = System.currentTimeMillis();
+            length = new FrameDecoder(codec, threads).decode(download, file);
+            download.delete();
+            MainApp.printSpeed("Sucessfully decoded " + fileName, start, length);
+         }
+         status = 0;
+      } catch(IOException | RuntimeException exception) {
+         // HttpResponseException among others, and the failed checks of what was transferred
+         System.err.println(exception.getMessage());
+         exception.printStackTrace();
+      } finally {
+         // Close connecton
+         context.close();
+      }
+      System.exit(status);
+
+   }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.List;
+
+import com.google.common.io.Files;
+
+/**
+ * Remembers which chunks of a download are safely on disk, in a small text file next to the target file.
+ *
+ * The first line identifies the object (ETag, length and chunk size); every following line is the number of a
+ * chunk that was written and forced to disk. When the file does not match the object any more, it is ignored and
+ * the download starts over.
+ */
+public class DownloadState {
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   private final File file;
+   private final BitSet done = new BitSet();
+   private final Writer writer;
+
+   private DownloadState(File file, String header, boolean resume) throws IOException {
+      this.file = file;
+      if (resume) {
+         List<String> lines = Files.readLines(file, UTF_8);
+         for (String line : lines.subList(1, lines.size())) {
+            // A line cut short by a crash is simply not counted.
+            if (line.matches("[0-9]+")) {
+               done.set(Integer.parseInt(line));
+            }
+         }
+         writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+      } else {
+         writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+         writer.write(header + "\n");
+         writer.flush();
+      }
+   }
+
+   /**
+    * Opens the state of a download, resuming it if the file describes the same object cut in the same chunks; the
+    * caller checks that the target file still has the length of the object.
+    */
+   public static DownloadState open(File file, String eTag, long length, long chunkSize) throws IOException {
+      String header = eTag + "\t" + length + "\t" + chunkSize;
+      boolean resume = file.exists() && header.equals(Files.readFirstLine(file, UTF_8));
+      return new DownloadState(file, header, resume);
+   }
+
+   public boolean isResumed() {
+      return !done.isEmpty();
+   }
+
+   public synchronized boolean isDone(int chunk) {
+      return done.get(chunk);
+   }
+
+   /**
+    * Records a chunk; call it only once its bytes are forced to disk.
+    */
+   public synchronized void done(int chunk) throws IOException {
+      done.set(chunk);
+      writer.write(chunk + "\n");
+      writer.flush();
+   }
+
+   public synchronized int getDoneCount() {
+      return done.cardinality();
+   }
+
+   public synchronized void close() throws IOException {
+      writer.close();
+   }
+
+   /**
+    * Removes the state once the download is complete.
+    */
+   public void delete() throws IOException {
+      close();
+      file.delete();
+   }
+}
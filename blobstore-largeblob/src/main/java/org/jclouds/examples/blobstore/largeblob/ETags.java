@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.jclouds.blobstore.domain.MultipartPart;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * What the ETags of parts and of multipart objects are made of, to check them against what was sent.
+ *
+ * S3 and the providers that copy it give a part the hex MD5 of its bytes as ETag, and a multipart object the MD5
+ * of the binary MD5s of its parts, in order, followed by a dash and the number of parts. Other ETags, and MD5
+ * lookalikes such as those of S3 objects encrypted with KMS, cannot be checked this way; set
+ * -Dlargeblob.verify=false for those.
+ */
+final class ETags {
+   static final String VERIFY_PROPERTY = "largeblob.verify";
+
+   private static final Pattern MD5 = Pattern.compile("[0-9a-f]{32}");
+   private static final Pattern COMPOSITE = Pattern.compile("[0-9a-f]{32}-[0-9]+");
+
+   private ETags() {
+   }
+
+   /**
+    * @return whether -Dlargeblob.verify, true by default, asks for ETags to be checked.
+    */
+   static boolean verify() {
+      return Boolean.parseBoolean(System.getProperty(VERIFY_PROPERTY, "true"));
+   }
+
+   /**
+    * @return the ETag without quotes, in lower case.
+    */
+   static String normalize(String eTag) {
+      return eTag == null ? "" : eTag.replace("\"", "").toLowerCase();
+   }
+
+   static boolean isMd5(String eTag) {
+      return MD5.matcher(normalize(eTag)).matches();
+   }
+
+   /**
+    * @return the ETag of an object made of the parts, in the order of the list, if their ETags are MD5s.
+    */
+   static String composite(List<MultipartPart> parts) {
+      Hasher hasher = Hashing.md5().newHasher();
+      for (MultipartPart part : parts) {
+         hasher.putBytes(HashCode.fromString(normalize(part.partETag())).asBytes());
+      }
+      return hasher.hash() + "-" + parts.size();
+   }
+
+   static boolean isComposite(String eTag) {
+      return COMPOSITE.matcher(normalize(eTag)).matches();
+   }
+
+   /**
+    * @return true if the ETag of a part is an MD5 and not the one of the bytes that were sent.
+    */
+   static boolean contradicts(String eTag, HashCode md5) {
+      return md5 != null && isMd5(eTag) && !normalize(eTag).equals(md5.toString());
+   }
+
+   /**
+    * @return true if the ETag of a multipart object is a composite and not the one of its parts.
+    */
+   static boolean contradicts(String eTag, List<MultipartPart> parts) {
+      if (!isComposite(eTag)) {
+         return false;
+      }
+      for (MultipartPart part : parts) {
+         if (!isMd5(part.partETag())) {
+            return false;
+         }
+      }
+      return !normalize(eTag).equals(composite(parts));
+   }
+
+   /**
+    * @return the MD5 of the bytes between the position and the limit of the buffer, which does not move; direct
+    *         buffers are hashed where they are, without a copy on the heap.
+    */
+   static HashCode md5(ByteBuffer buffer) {
+      try {
+         MessageDigest digest = MessageDigest.getInstance("MD5");
+         digest.update(buffer.duplicate());
+         return HashCode.fromBytes(digest.digest());
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
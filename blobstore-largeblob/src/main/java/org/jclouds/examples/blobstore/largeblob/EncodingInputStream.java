@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+
+/**
+ * The frames of another stream, as encoded by a {@link FrameCodec}.
+ *
+ * The other stream is read a frame at a time, and frames are encoded by a pool of threads a few frames ahead of
+ * the reader, so compressing and encrypting use every core while the frames still come out in order. The frame
+ * that holds the end of the other stream is marked as the last one; when the stream ends on a frame boundary, that
+ * is an extra empty frame.
+ */
+public class EncodingInputStream extends InputStream {
+   private final InputStream in;
+   private final FrameCodec codec;
+   private final ExecutorService executor;
+   private final int window;
+   private final long objectId;
+   private final Deque<Future<byte[]>> frames = new ArrayDeque<Future<byte[]>>();
+   private byte[] frame;
+   private int position;
+   private int frameNumber;
+   private long offset;
+   private boolean end;
+
+   /**
+    * @param threads the threads to encode with; twice as many frames are encoded ahead.
+    */
+   public EncodingInputStream(InputStream in, FrameCodec codec, int threads) {
+      this.in = in;
+      this.codec = codec;
+      this.executor = Executors.newFixedThreadPool(threads);
+      this.window = 2 * threads;
+      this.objectId = codec.newObjectId();
+   }
+
+   @Override
+   public int read() throws IOException {
+      if (!next()) {
+         return -1;
+      }
+      return frame[position++] & 0xff;
+   }
+
+   @Override
+   public int read(byte[] bytes, int off, int len) throws IOException {
+      if (len == 0) {
+         return 0;
+      }
+      if (!next()) {
+         return -1;
+      }
+      int count = Math.min(len, frame.length - position);
+      System.arraycopy(frame, position, bytes, off, count);
+      position += count;
+      return count;
+   }
+
+   @Override
+   public void close() throws IOException {
+      executor.shutdownNow();
+      in.close();
+   }
+
+   /**
+    * @return false at the end of the last frame.
+    */
+   private boolean next() throws IOException {
+      if (frame != null && position < frame.length) {
+         return true;
+      }
+      fillWindow();
+      Future<byte[]> future = frames.poll();
+      if (future == null) {
+         return false;
+      }
+      try {
+         frame = future.get();
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while encoding");
+      }
+      position = 0;
+      return true;
+   }
+
+   /**
+    * Reads frames and hands them to the encoders until the window is full or the stream ends.
+    */
+   private void fillWindow() throws IOException {
+      while (!end && frames.size() < window) {
+         final byte[] plain = new byte[FrameCodec.FRAME_SIZE];
+         final int length = ByteStreams.read(in, plain, 0, plain.length);
+         // A short frame is the last one, and an empty one still goes out to mark the end.
+         end = length < plain.length;
+         final boolean last = end;
+         final int number = frameNumber++;
+         final long frameOffset = offset;
+         offset += length;
+         frames.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+               return codec.encode(objectId, number, frameOffset, plain, length, last);
+            }
+         }));
+      }
+   }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+
+/**
+ * A range of a file, read with positional reads on a {@link FileChannel} that is shared by all slices.
+ *
+ * Positional reads do not move the position of the channel, so any number of threads can read their own slice of
+ * the same channel at once, without seeking and without one stream per thread. Every call to {@link #openStream()}
+ * starts again at the beginning of the slice, which lets jclouds retry a part.
+ *
+ * While the slice is read, its MD5 is computed, and the time spent reading the file and hashing is added up, so a
+ * part can tell how much of its time went to the disk and how much to the network.
+ *
+ * A slice can also be {@link #stage(ByteBuffer) staged} in a buffer first, typically a direct one from a
+ * {@link DirectBufferPool}: it is read and hashed once, and every stream, retries included, is served from memory.
+ */
+public class FileSlice extends ByteSource {
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final FileChannel channel;
+   private final long offset;
+   private final long length;
+   private final AtomicInteger opens = new AtomicInteger();
+   private final AtomicLong readNanos = new AtomicLong();
+   private final AtomicLong hashNanos = new AtomicLong();
+   private volatile HashCode md5;
+   private volatile ByteBuffer staged;
+
+   public FileSlice(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.offset = offset;
+      this.length = length;
+   }
+
+   @Override
+   public long size() {
+      return length;
+   }
+
+   public long getOffset() {
+      return offset;
+   }
+
+   @Override
+   public InputStream openStream() {
+      opens.incrementAndGet();
+      ByteBuffer buffer = staged;
+      return buffer != null ? new ByteBufferInputStream(buffer.duplicate()) : new SliceInputStream();
+   }
+
+   /**
+    * Reads the whole slice into the buffer and hashes it, after which streams read from the buffer instead of the
+    * file until {@link #unstage()}.
+    */
+   public void stage(ByteBuffer buffer) throws IOException {
+      if (buffer.capacity() < length) {
+         throw new IllegalArgumentException("a slice of " + length + " bytes does not fit a buffer of " +
+               buffer.capacity());
+      }
+      buffer.clear();
+      buffer.limit((int) length);
+      long start = System.nanoTime();
+      while (buffer.hasRemaining()) {
+         long position = offset + buffer.position();
+         if (channel.read(buffer, position) < 0) {
+            throw new IOException("file ended at " + position + ", expected " + (offset + length) + " bytes");
+         }
+      }
+      readNanos.addAndGet(System.nanoTime() - start);
+      buffer.flip();
+
+      start = System.nanoTime();
+      md5 = ETags.md5(buffer);
+      hashNanos.addAndGet(System.nanoTime() - start);
+      staged = buffer;
+   }
+
+   /**
+    * Stops using the buffer given to {@link #stage(ByteBuffer)}, so that it can be reused.
+    */
+   public void unstage() {
+      staged = null;
+   }
+
+   /**
+    * @return how often the slice was read, i.e. 1 + the number of retries.
+    */
+   public int getOpenCount() {
+      return opens.get();
+   }
+
+   /**
+    * @return the time spent in reads from the file, over all attempts.
+    */
+   public long getReadNanos() {
+      return readNanos.get();
+   }
+
+   /**
+    * @return the time spent hashing, over all attempts.
+    */
+   public long getHashNanos() {
+      return hashNanos.get();
+   }
+
+   /**
+    * @return the MD5 of the slice, once it was read to the end, or null.
+    */
+   public HashCode getMd5() {
+      return md5;
+   }
+
+   private class SliceInputStream extends InputStream {
+      private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      private long position = offset;
+      private final long end = offset + length;
+      private final Hasher hasher = Hashing.md5().newHasher();
+      private boolean hashed;
+
+      SliceInputStream() {
+         buffer.limit(0);
+      }
+
+      @Override
+      public int read() throws IOException {
+         if (!fill()) {
+            return -1;
+         }
+         byte b = buffer.get();
+         long start = System.nanoTime();
+         hasher.putByte(b);
+         hashNanos.addAndGet(System.nanoTime() - start);
+         finish();
+         return b & 0xff;
+      }
+
+      @Override
+      public int read(byte[] bytes, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         }
+         if (!fill()) {
+            return -1;
+         }
+         int count = Math.min(len, buffer.remaining());
+         buffer.get(bytes, off, count);
+         long start = System.nanoTime();
+         hasher.putBytes(bytes, off, count);
+         hashNanos.addAndGet(System.nanoTime() - start);
+         finish();
+         return count;
+      }
+
+      @Override
+      public int available() {
+         return buffer.remaining();
+      }
+
+      /**
+       * Sets the MD5 once the last byte was read, whether or not the reader asks for more: HTTP clients usually
+       * stop at the content length.
+       */
+      private void finish() {
+         if (!hashed && position >= end && !buffer.hasRemaining()) {
+            // Only a stream that got to the end has the hash of the whole slice.
+            md5 = hasher.hash();
+            hashed = true;
+         }
+      }
+
+      /**
+       * @return false at the end of the slice.
+       */
+      private boolean fill() throws IOException {
+         if (buffer.hasRemaining()) {
+            return true;
+         }
+         if (position >= end) {
+            finish();
+            return false;
+         }
+         buffer.clear();
+         buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+         long start = System.nanoTime();
+         int read = channel.read(buffer, position);
+         readNanos.addAndGet(System.nanoTime() - start);
+         if (read < 0) {
+            throw new IOException("file ended at " + position + ", expected " + end + " bytes");
+         }
+         position += read;
+         buffer.flip();
+         return buffer.hasRemaining() || fill();
+      }
+   }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Compresses and encrypts data in frames that can each be decoded on their own, so that frames are encoded on
+ * the way up and decoded on the way down in parallel, on as many cores as there are.
+ *
+ * A frame is a header followed by the encoded bytes:
+ * <pre>
+ * int  magic, "LBF3"
+ * byte flags, {@link #GZIP} and/or {@link #AES_GCM}, and {@link #LAST} on the last frame
+ * long object id, random and the same for all frames of the data
+ * int  frame number
+ * long offset of the frame in the plain data
+ * int  plain length
+ * int  encoded length
+ * 12 bytes initialization vector, when encrypted
+ * </pre>
+ * The plain bytes are gzipped, then encrypted with AES-GCM under a fresh random IV per frame, with the header as
+ * additional authenticated data: a frame that is altered, truncated or moved to another place fails to decrypt,
+ * and one taken from another object encoded with the same key carries the id of that object, which the decoder
+ * refuses. Since every frame carries its offset, frames can be written to their place in the output in any order.
+ *
+ * Frames are numbered from 0 and follow each other without gaps, and only the last one has {@link #LAST} set,
+ * even if it has to be empty. The decoder checks both, so frames dropped from the middle or the end are found;
+ * with encryption the flag is authenticated too, so it cannot be set on an earlier frame. Lengths in a header are
+ * checked against the frame size before anything is allocated for them, so a corrupt header is an IOException
+ * and not an attempt to allocate gigabytes.
+ *
+ * Pick the stages with -Dlargeblob.gzip=true and -Dlargeblob.keyFile=/path/to/key, a file of 16, 24 or 32 random
+ * bytes, e.g. from head -c 32 /dev/urandom.
+ */
+public class FrameCodec {
+   public static final String GZIP_PROPERTY = "largeblob.gzip";
+   public static final String KEY_FILE_PROPERTY = "largeblob.keyFile";
+
+   public static final byte GZIP = 1;
+   public static final byte AES_GCM = 2;
+   /**
+    * Set on the last frame of the data, and on no other.
+    */
+   public static final byte LAST = 4;
+
+   /**
+    * Plain bytes per frame: enough to compress well, small enough to spread a part over several cores.
+    */
+   public static final int FRAME_SIZE = 4 * 1024 * 1024;
+
+   static final int MAGIC = 0x4c424633;
+   static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 8 + 4 + 4;
+   private static final int IV_SIZE = 12;
+   static final int MAX_HEADER_SIZE = HEADER_SIZE + IV_SIZE;
+   private static final int TAG_BITS = 128;
+   private static final int TAG_SIZE = TAG_BITS / 8;
+   /**
+    * Most a frame can grow by gzip: a few bytes of header and trailer, and 5 bytes per stored block of 64KB for
+    * data that does not compress; this leaves plenty of room.
+    */
+   private static final int MAX_GZIP_OVERHEAD = FRAME_SIZE / 1024 + 64;
+   private static final String CIPHER = "AES/GCM/NoPadding";
+
+   private final boolean gzip;
+   private final SecretKey key;
+   private final SecureRandom random = new SecureRandom();
+
+   /**
+    * @param key the AES key to encrypt with, or null to not encrypt.
+    */
+   public FrameCodec(boolean gzip, SecretKey key) {
+      this.gzip = gzip;
+      this.key = key;
+   }
+
+   /**
+    * @return the codec the system properties ask for, or null if they ask for neither stage.
+    */
+   public static FrameCodec fromSystemProperties() throws IOException {
+      boolean gzip = Boolean.getBoolean(GZIP_PROPERTY);
+      String keyFile = System.getProperty(KEY_FILE_PROPERTY);
+      if (!gzip && keyFile == null) {
+         return null;
+      }
+      SecretKey key = null;
+      if (keyFile != null) {
+         byte[] bytes = Files.toByteArray(new File(keyFile));
+         if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+            throw new IllegalArgumentException(keyFile + " holds " + bytes.length +
+                  " bytes, an AES key is 16, 24 or 32 bytes");
+         }
+         key = new SecretKeySpec(bytes, "AES");
+      }
+      return new FrameCodec(gzip, key);
+   }
+
+   /**
+    * @return a random id for the frames of new data.
+    */
+   public long newObjectId() {
+      return random.nextLong();
+   }
+
+   /**
+    * @return the frame holding length bytes of plain, which start at offset in the plain data.
+    * @param objectId the id of the data, from {@link #newObjectId()}, the same for all its frames.
+    * @param last true for the last frame of the data.
+    */
+   public byte[] encode(long objectId, int frameNumber, long offset, byte[] plain, int length, boolean last)
+         throws IOException {
+      byte flags = (byte) ((gzip ? GZIP : 0) | (key != null ? AES_GCM : 0) | (last ? LAST : 0));
+      byte[] encoded = plain;
+      int encodedLength = length;
+      if (gzip) {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+         OutputStream out = new GZIPOutputStream(bytes);
+         out.write(plain, 0, length);
+         out.close();
+         encoded = bytes.toByteArray();
+         encodedLength = encoded.length;
+      }
+
+      byte[] iv = null;
+      if (key != null) {
+         iv = new byte[IV_SIZE];
+         random.nextBytes(iv);
+         encodedLength += TAG_SIZE;
+      }
+      ByteBuffer frame = ByteBuffer.allocate(headerSize(flags) + encodedLength);
+      frame.putInt(MAGIC).put(flags).putLong(objectId).putInt(frameNumber).putLong(offset).putInt(length)
+            .putInt(encodedLength);
+      if (key == null) {
+         frame.put(encoded, 0, encodedLength);
+         return frame.array();
+      }
+      frame.put(iv);
+      try {
+         Cipher cipher = Cipher.getInstance(CIPHER);
+         cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+         cipher.updateAAD(frame.array(), 0, frame.position());
+         int plainLength = encodedLength - TAG_SIZE;
+         cipher.doFinal(encoded, 0, plainLength, frame.array(), frame.position());
+      } catch (GeneralSecurityException e) {
+         throw new IOException("could not encrypt frame " + frameNumber, e);
+      }
+      return frame.array();
+   }
+
+   /**
+    * @return the plain bytes of a frame whose header was read with {@link #readHeader(ByteBuffer)}.
+    */
+   public byte[] decode(Header header, byte[] encoded) throws IOException {
+      byte[] bytes = encoded;
+      if ((header.flags & AES_GCM) != 0) {
+         if (key == null) {
+            throw new IOException("frame " + header.frameNumber + " is encrypted, set -D" + KEY_FILE_PROPERTY);
+         }
+         try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, header.iv));
+            cipher.updateAAD(header.bytes);
+            bytes = cipher.doFinal(encoded);
+         } catch (GeneralSecurityException e) {
+            throw new IOException("frame " + header.frameNumber + " does not decrypt, wrong key or altered data", e);
+         }
+      }
+      if ((header.flags & GZIP) != 0) {
+         InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+         try {
+            bytes = new byte[header.plainLength];
+            ByteStreams.readFully(in, bytes);
+            if (in.read() != -1) {
+               throw new IOException("frame " + header.frameNumber + " holds more than " + header.plainLength +
+                     " bytes");
+            }
+         } finally {
+            in.close();
+         }
+      }
+      if (bytes.length != header.plainLength) {
+         throw new IOException("frame " + header.frameNumber + " holds " + bytes.length + " bytes, expected " +
+               header.plainLength);
+      }
+      return bytes;
+   }
+
+   static int headerSize(byte flags) {
+      return HEADER_SIZE + ((flags & AES_GCM) != 0 ? IV_SIZE : 0);
+   }
+
+   /**
+    * Reads a header from the buffer, which holds {@link #MAX_HEADER_SIZE} bytes unless the data ends before.
+    */
+   static Header readHeader(ByteBuffer buffer) throws IOException {
+      int start = buffer.position();
+      if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+         throw new IOException("not a frame at " + start + ", the object was not encoded or is corrupt");
+      }
+      Header header = new Header();
+      header.flags = buffer.get();
+      header.objectId = buffer.getLong();
+      header.frameNumber = buffer.getInt();
+      header.offset = buffer.getLong();
+      header.plainLength = buffer.getInt();
+      header.encodedLength = buffer.getInt();
+      checkLengths(header, start);
+      int size = headerSize(header.flags);
+      if (buffer.limit() - start < size) {
+         throw new IOException("frame " + header.frameNumber + " is cut short");
+      }
+      if ((header.flags & AES_GCM) != 0) {
+         header.iv = new byte[IV_SIZE];
+         buffer.get(header.iv);
+      }
+      header.bytes = new byte[size];
+      buffer.position(start);
+      buffer.get(header.bytes);
+      return header;
+   }
+
+   /**
+    * Rejects a header whose fields no encoder writes, before the lengths in it are used to allocate buffers.
+    */
+   private static void checkLengths(Header header, int start) throws IOException {
+      if ((header.flags & ~(GZIP | AES_GCM | LAST)) != 0 || header.frameNumber < 0 || header.offset < 0 ||
+            header.plainLength < 0 || header.plainLength > FRAME_SIZE) {
+         throw new IOException("corrupt frame header at " + start);
+      }
+      int tag = (header.flags & AES_GCM) != 0 ? TAG_SIZE : 0;
+      boolean valid;
+      if ((header.flags & GZIP) != 0) {
+         valid = header.encodedLength >= tag && header.encodedLength <= FRAME_SIZE + MAX_GZIP_OVERHEAD + tag;
+      } else {
+         valid = header.encodedLength == header.plainLength + tag;
+      }
+      if (!valid) {
+         throw new IOException("corrupt frame header at " + start + ", frame " + header.frameNumber + " of " +
+               header.plainLength + " bytes cannot be " + header.encodedLength + " bytes encoded");
+      }
+   }
+
+   /**
+    * The header of a frame.
+    */
+   static class Header {
+      byte flags;
+      long objectId;
+      int frameNumber;
+      long offset;
+      int plainLength;
+      int encodedLength;
+      byte[] iv;
+      byte[] bytes;
+
+      int size() {
+         return bytes.length;
+      }
+
+      boolean isLast() {
+         return (flags & LAST) != 0;
+      }
+   }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Decodes a file of frames written by a {@link FrameCodec}, with the frames decoded in parallel.
+ *
+ * The headers are read first, one small read per frame, to find where every frame starts and to check that the
+ * frames run from the first to the one marked last without gaps, all with the id of the first one; the headers are
+ * authenticated along with their frames when those are decrypted. Then every frame is read, decrypted and
+ * decompressed on its own and written at its offset in the output, with positional reads and writes, so the frames
+ * do not wait on each other.
+ */
+public class FrameDecoder {
+   private final FrameCodec codec;
+   private final int threads;
+
+   public FrameDecoder(FrameCodec codec, int threads) {
+      this.codec = codec;
+      this.threads = threads;
+   }
+
+   /**
+    * Writes the plain data of the frames in encoded to plain, replacing it.
+    *
+    * @return the length of the plain data.
+    */
+   public long decode(File encoded, File plain) throws IOException {
+      RandomAccessFile input = new RandomAccessFile(encoded, "r");
+      RandomAccessFile output = new RandomAccessFile(plain, "rw");
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         FileChannel in = input.getChannel();
+         FileChannel out = output.getChannel();
+         List<FrameCodec.Header> headers = new ArrayList<FrameCodec.Header>();
+         List<Long> positions = new ArrayList<Long>();
+         long length = 0;
+         ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.MAX_HEADER_SIZE);
+         for (long position = 0; position < in.size(); ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), in.size() - position));
+            while (buffer.hasRemaining()) {
+               if (in.read(buffer, position + buffer.position()) < 0) {
+                  throw new IOException(encoded + " ended while reading the header at " + position);
+               }
+            }
+            buffer.flip();
+            FrameCodec.Header header = FrameCodec.readHeader(buffer);
+            if (!headers.isEmpty() && headers.get(headers.size() - 1).isLast()) {
+               throw new IOException(encoded + " goes on after its last frame, at " + position);
+            }
+            if (!headers.isEmpty() && header.objectId != headers.get(0).objectId) {
+               throw new IOException("frame " + header.frameNumber + " of " + encoded + " belongs to another object");
+            }
+            // Frames follow each other, a missing or repeated one would leave a hole or overlap in the output.
+            if (header.frameNumber != headers.size() || header.offset != length) {
+               throw new IOException("frame " + header.frameNumber + " at offset " + header.offset + " of " +
+                     encoded + " is not frame " + headers.size() + " at offset " + length + ", frames are missing");
+            }
+            headers.add(header);
+            positions.add(position + header.size());
+            length += header.plainLength;
+            position += header.size() + header.encodedLength;
+            if (position > in.size()) {
+               throw new IOException("frame " + header.frameNumber + " of " + encoded + " is cut short");
+            }
+         }
+         if (headers.isEmpty() || !headers.get(headers.size() - 1).isLast()) {
+            throw new IOException(encoded + " ends after " + headers.size() + " frames without its last frame, " +
+                  "it is truncated");
+         }
+         output.setLength(length);
+
+         List<Future<Void>> futures = new ArrayList<Future<Void>>(headers.size());
+         for (int i = 0; i < headers.size(); i++) {
+            futures.add(executor.submit(decodeFrame(in, out, headers.get(i), positions.get(i))));
+         }
+         for (Future<Void> future : futures) {
+            future.get();
+         }
+         out.force(false);
+         return length;
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while decoding " + encoded);
+      } finally {
+         executor.shutdownNow();
+         input.close();
+         output.close();
+      }
+   }
+
+   private Callable<Void> decodeFrame(final FileChannel in, final FileChannel out, final FrameCodec.Header header,
+                                      final long position) {
+      return new Callable<Void>() {
+         @Override
+         public Void call() throws IOException {
+            ByteBuffer encoded = ByteBuffer.allocate(header.encodedLength);
+            while (encoded.hasRemaining()) {
+               if (in.read(encoded, position + encoded.position()) < 0) {
+                  throw new IOException("frame " + header.frameNumber + " is cut short");
+               }
+            }
+            ByteBuffer plain = ByteBuffer.wrap(codec.decode(header, encoded.array()));
+            while (plain.hasRemaining()) {
+               out.write(plain, header.offset + plain.position());
+            }
+            return null;
+         }
+      };
+   }
+}
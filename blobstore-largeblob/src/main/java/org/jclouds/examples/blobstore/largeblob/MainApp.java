@@ -18,30 +18,29 @@ package org.jclouds.examples.blobstore.largeblob;
 
 import static com.google.common.collect.Iterables.transform;
 import static org.jclouds.Constants.PROPERTY_ENDPOINT;
-import static org.jclouds.blobstore.options.PutOptions.Builder.multipart;
 import static org.jclouds.location.reference.LocationConstants.ENDPOINT;
 import static org.jclouds.location.reference.LocationConstants.PROPERTY_REGION;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 
 import javax.ws.rs.core.MediaType;
 
+import org.jclouds.Constants;
 import org.jclouds.ContextBuilder;
 import org.jclouds.aws.domain.Region;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
-import org.jclouds.http.HttpResponseException;
-import org.jclouds.http.config.JavaUrlHttpCommandExecutorServiceModule;
-import org.jclouds.logging.log4j.config.Log4JLoggingModule;
-import org.jclouds.netty.config.NettyPayloadModule;
 import org.jclouds.providers.ProviderMetadata;
 import org.jclouds.providers.Providers;
 
-import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CountingInputStream;
 import com.google.common.io.Files;
 import com.google.inject.Module;
 
@@ -49,14 +48,16 @@ import com.google.inject.Module;
  * Demonstrates the use of {@link BlobStore}.
  * 
  * Usage is: java MainApp \"provider\" \"identity\" \"credential\" \"localFileName\"
- * \"containerName\" \"objectName\" plainhttp threadcount
+ * \"containerName\" \"objectName\" plainhttp threadcount timelineFile
  * 
- * \"plainhttp\" and \"threadcound\" is optional if all the rest of parameters are omitted
+ * \"plainhttp\", \"threadcound\" and \"timelineFile\" are optional if all the rest of parameters are omitted.
+ * A localFileName of - uploads the standard input, e.g. pg_dump mydb | gzip | java MainApp ... - ...
+ * The timeline of the parts is written as JSON if timelineFile ends in .json, as CSV otherwise.
  */
 public class MainApp {
 
    public static int PARAMETERS = 6;
-   public static String INVALID_SYNTAX = "Invalid number of parameters. Syntax is: \"provider\" \"identity\" \"credential\" \"localFileName\" \"containerName\" \"objectName\" plainhttp threadcount";
+   public static String INVALID_SYNTAX = "Invalid number of parameters. Syntax is: \"provider\" \"identity\" \"credential\" \"localFileName\" \"containerName\" \"objectName\" plainhttp threadcount timelineFile";
 
    public final static Properties PLAIN_HTTP_ENDPOINTS = new Properties();
 
@@ -72,12 +73,12 @@ public class MainApp {
                "http://s3-ap-southeast-1.amazonaws.com");
    }
 
-   final static Iterable<? extends Module> MODULES = 
-      ImmutableSet.of(new JavaUrlHttpCommandExecutorServiceModule(), new Log4JLoggingModule(), new NettyPayloadModule());
+   public static int DEFAULT_THREADS = 4;
 
-   // we may test different http layer with the following
-   // ImmutableSet.of(new ApacheHCHttpCommandExecutorServiceModule(), new Log4JLoggingModule(), new
-   // NettyPayloadModule());
+   public final static String STDIN = "-";
+
+   // the http layer is chosen with -Dlargeblob.transport, see Transport
+   final static Iterable<? extends Module> MODULES = Transport.fromSystemProperty().modules();
 
    static String getSpeed(long speed) {
       if (speed < 1024) {
@@ -90,21 +91,20 @@ public class MainApp {
    }
 
    static void printSpeed(String message, long start, long length) {
-      long sec = (System.currentTimeMillis() - start) / 1000;
-      if (sec == 0)
-         return;
-      long speed = length / sec;
+      // at least a millisecond, small files over a fast link take less than a second
+      long millis = Math.max(1, System.currentTimeMillis() - start);
+      long speed = length * 1000 / millis;
       System.out.print(message);
-      if (speed < 1024) {
+      if (length < 1024) {
          System.out.print(" " + length + " bytes");
-      } else if (speed < 1048576) {
+      } else if (length < 1048576) {
          System.out.print(" " + (length / 1024) + " kB");
-      } else if (speed < 1073741824) {
+      } else if (length < 1073741824) {
          System.out.print(" " + (length / 1048576) + " MB");
       } else {
          System.out.print(" " + (length / 1073741824) + " GB");
       }
-      System.out.println(" with " + getSpeed(speed) + " (" + length + " bytes)");
+      System.out.println(" in " + millis + " ms with " + getSpeed(speed) + " (" + length + " bytes)");
    }
 
    public static void main(String[] args) throws IOException {
@@ -127,19 +127,21 @@ public class MainApp {
       String containerName = args[4];
       String objectName = args[5];
       boolean plainhttp = args.length >= 7 && "plainhttp".equals(args[6]);
-      String threadcount = args.length >= 8 ? args[7] : null;
+      int threads = args.length >= 8 ? Integer.parseInt(args[7]) : DEFAULT_THREADS;
+      File timelineFile = args.length >= 9 ? new File(args[8]) : null;
 
       // Init
       Properties overrides = new Properties();
       if (plainhttp)
          overrides.putAll(PLAIN_HTTP_ENDPOINTS); // default is https
-      if (threadcount != null)
-         overrides.setProperty("jclouds.mpu.parallel.degree", threadcount); // without setting,
-      // default is 4 threads
+      // every part holds a connection while it is sent
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(threads));
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(threads));
       overrides.setProperty(providerId + ".identity", identity);
       overrides.setProperty(providerId + ".credential", credential);
       BlobStoreContext context = ContextBuilder.newBuilder(provider).modules(MODULES).overrides(overrides).build(BlobStoreContext.class);
 
+      int status = 1;
       try {
          long start = System.currentTimeMillis();
          // Create Container
@@ -147,23 +149,60 @@ public class MainApp {
          // BlobStore
          blobStore.createContainerInLocation(null, containerName);
 
-         File input = new File(fileName);
-         long length = input.length();
-         // Add a Blob
-         Blob blob = blobStore.blobBuilder(objectName).payload(Files.asByteSource(input))
-               .contentType(MediaType.APPLICATION_OCTET_STREAM).contentDisposition(objectName).build();
-         // Upload a file
-         String eTag = blobStore.putBlob(containerName, blob, multipart());
+         String eTag;
+         long length;
+         PartTimeline timeline;
+         DirectBufferPool buffers;
+         // -Dlargeblob.gzip and -Dlargeblob.keyFile compress and encrypt on the way, see FrameCodec
+         FrameCodec codec = FrameCodec.fromSystemProperties();
+         if (STDIN.equals(fileName) || codec != null) {
+            // Stream the input, in parts read into a ring of buffers, one more than there are threads
+            buffers = DirectBufferPool.fromSystemProperty((int) MultipartUploader.TARGET_PART_SIZE);
+            if (buffers == null)
+               buffers = new DirectBufferPool(threads + 1, (int) MultipartUploader.TARGET_PART_SIZE);
+            Blob blob = blobStore.blobBuilder(objectName).payload(ByteSource.empty())
+                  .contentType(MediaType.APPLICATION_OCTET_STREAM).contentDisposition(objectName).build();
+            CountingInputStream counted = new CountingInputStream(STDIN.equals(fileName) ? System.in :
+                  new FileInputStream(fileName));
+            InputStream in = codec != null ? new EncodingInputStream(counted, codec, threads) : counted;
+            StreamingUploader uploader = new StreamingUploader(blobStore, threads, buffers);
+            try {
+               eTag = uploader.upload(containerName, blob, in);
+            } finally {
+               in.close();
+            }
+            length = counted.getCount();
+            timeline = uploader.getTimeline();
+         } else {
+            File input = new File(fileName);
+            length = input.length();
+            // Add a Blob
+            Blob blob = blobStore.blobBuilder(objectName).payload(Files.asByteSource(input))
+                  .contentType(MediaType.APPLICATION_OCTET_STREAM).contentDisposition(objectName).build();
+            // Upload a file, its parts in parallel
+            // -Dlargeblob.buffers stages the parts off-heap, see DirectBufferPool
+            buffers = DirectBufferPool.fromSystemProperty((int) MultipartUploader.TARGET_PART_SIZE);
+            MultipartUploader uploader = new MultipartUploader(blobStore, threads, 0, buffers);
+            eTag = uploader.upload(containerName, blob, input);
+            timeline = uploader.getTimeline();
+         }
 
          printSpeed("Sucessfully uploaded eTag(" + eTag + ")", start, length);
-      } catch(HttpResponseException exception) {
+         if (buffers != null)
+            System.out.println("Parts staged in " + (buffers.getAllocatedBytes() / 1048576) + " MB of direct buffers");
+         timeline.printSummary();
+         if (timelineFile != null)
+            timeline.write(timelineFile);
+         status = 0;
+      } catch(IOException | RuntimeException exception) {
+         // HttpResponseException among others, and the failed checks of what was transferred
          System.err.println(exception.getMessage());
          exception.printStackTrace();
       } finally {
          // Close connecton
          context.close();
-         System.exit(0);
       }
+      System.exit(status);
 
    }
 }
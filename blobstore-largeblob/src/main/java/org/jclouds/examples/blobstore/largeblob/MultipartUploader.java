@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Uploads a file as a multipart upload, with the parts sent in parallel.
+ *
+ * The file is cut into ranges up front and every part reads its own range through a {@link FileSlice}, so the
+ * threads never share a stream or a file position. Once every part is stored, the upload is completed with the
+ * list of parts.
+ *
+ * The upload id and every stored part are recorded in an {@link UploadState} next to the file. If the upload
+ * fails, it is left open on the provider; uploading the same file again checks the recorded parts against the
+ * parts the provider lists, and only sends the ones that are missing.
+ *
+ * Given a {@link DirectBufferPool}, every part is staged in one of its buffers before it is sent, which keeps the
+ * parts off the heap and lets no more parts be in flight than there are buffers.
+ *
+ * Given a {@link PartScheduler}, the parts run on its threads, under its bandwidth cap, alongside the parts of
+ * every other upload that shares it; otherwise every upload has a pool of its own.
+ *
+ * Every part is hashed as it is read, and its ETag checked against the MD5 when the provider returns one: a part
+ * that does not match is sent again, from memory if it is staged, and only that part. Once completed, the ETag of
+ * the object is checked against the composite of the part ETags, see {@link ETags}.
+ */
+public class MultipartUploader {
+   /**
+    * Largest part size to aim for. Smaller parts keep all threads busy on medium files and make a retry cheaper,
+    * larger parts mean fewer requests; very large files get larger parts anyway to stay within the part limit.
+    */
+   public static final long TARGET_PART_SIZE = 32L * 1024 * 1024;
+   /**
+    * Parts per thread to aim for, so that a slow part does not leave the other threads idle at the end.
+    */
+   private static final int PARTS_PER_THREAD = 4;
+   private static final long MB = 1024 * 1024;
+   /**
+    * Times a part whose ETag does not match its bytes is sent, before the upload fails.
+    */
+   private static final int MAX_SENDS = 3;
+
+   private final BlobStore blobStore;
+   private final int threads;
+   private final long fixedPartSize;
+   private final DirectBufferPool buffers;
+   private final PartScheduler scheduler;
+   private final PartTimeline timeline = new PartTimeline();
+   private final boolean verify = ETags.verify();
+
+   public MultipartUploader(BlobStore blobStore, int threads) {
+      this(blobStore, threads, 0);
+   }
+
+   /**
+    * @param partSize the size of every part but the last one, or 0 to pick it from the file size.
+    */
+   public MultipartUploader(BlobStore blobStore, int threads, long partSize) {
+      this(blobStore, threads, partSize, null);
+   }
+
+   /**
+    * @param partSize the size of every part but the last one, or 0 to pick it from the file size.
+    * @param buffers the buffers to stage parts in, or null to stream them from the file; parts are never larger
+    *                than these buffers.
+    */
+   public MultipartUploader(BlobStore blobStore, int threads, long partSize, DirectBufferPool buffers) {
+      this(blobStore, threads, partSize, buffers, null);
+   }
+
+   /**
+    * Sends the parts, and single part files, with the threads and bandwidth of the scheduler, which may be shared
+    * with other uploaders. {@link #upload(String, Blob, File)} must then not be called from the threads of the
+    * scheduler.
+    */
+   public MultipartUploader(BlobStore blobStore, PartScheduler scheduler, long partSize, DirectBufferPool buffers) {
+      this(blobStore, scheduler.getThreads(), partSize, buffers, scheduler);
+   }
+
+   private MultipartUploader(BlobStore blobStore, int threads, long partSize, DirectBufferPool buffers,
+                             PartScheduler scheduler) {
+      this.blobStore = blobStore;
+      this.threads = threads;
+      this.fixedPartSize = partSize;
+      this.buffers = buffers;
+      this.scheduler = scheduler;
+   }
+
+   /**
+    * @return the parts sent by this uploader so far, with where their time went.
+    */
+   public PartTimeline getTimeline() {
+      return timeline;
+   }
+
+   /**
+    * Uploads the file with the name and metadata of the blob. Files that fit in a single part are sent with a
+    * plain put.
+    *
+    * @return the ETag of the object.
+    */
+   public String upload(String container, Blob blob, File file) throws IOException {
+      long length = file.length();
+      long partSize = partSize(length);
+      if (length <= partSize) {
+         return putBlob(container, blob);
+      }
+
+      String name = blob.getMetadata().getName();
+      String key = container + "\t" + name + "\t" + length + "\t" + file.lastModified();
+      File stateFile = new File(file.getPath() + ".upload");
+      UploadState state = UploadState.read(stateFile);
+      MultipartUpload mpu = null;
+      Map<Integer, MultipartPart> stored = new HashMap<Integer, MultipartPart>();
+      if (state != null && state.getKey().equals(key)) {
+         // The parts keep the size they were cut with, whatever the number of threads is now.
+         partSize = state.getPartSize();
+         mpu = MultipartUpload.create(container, name, state.getUploadId(), blob.getMetadata(), new PutOptions());
+         try {
+            stored = validate(mpu, state.getParts());
+            System.out.println("Resuming upload " + mpu.id() + " with " + stored.size() + " parts already stored");
+         } catch (RuntimeException e) {
+            // Most likely expired or aborted on the provider side.
+            System.out.println("Cannot resume upload " + mpu.id() + " (" + e.getMessage() + "), starting over");
+            state.close();
+            state = null;
+            mpu = null;
+         }
+      } else if (state != null) {
+         // The file or the object changed since, so those parts are of no use any more.
+         abandon(state);
+         state = null;
+      }
+      if (mpu == null) {
+         mpu = blobStore.initiateMultipartUpload(container, blob.getMetadata(), new PutOptions());
+         state = UploadState.create(stateFile, key, partSize, mpu.id());
+      }
+
+      ExecutorService executor = scheduler != null ? scheduler.getExecutor() : Executors.newFixedThreadPool(threads);
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      List<Future<MultipartPart>> futures = new ArrayList<Future<MultipartPart>>();
+      try {
+         int partNumber = 1;
+         for (long offset = 0; offset < length; offset += partSize, partNumber++) {
+            MultipartPart part = stored.get(partNumber);
+            if (part != null) {
+               futures.add(Futures.immediateFuture(part));
+            } else {
+               futures.add(executor.submit(uploadPart(mpu, state, partNumber, new FileSlice(channel, offset,
+                     Math.min(partSize, length - offset)))));
+            }
+         }
+         List<MultipartPart> parts = new ArrayList<MultipartPart>(futures.size());
+         for (Future<MultipartPart> future : futures) {
+            parts.add(future.get());
+         }
+         String eTag = blobStore.completeMultipartUpload(mpu, parts);
+         state.delete();
+         if (verify && ETags.contradicts(eTag, parts)) {
+            // Completed but not made of what was sent, nothing to resume.
+            blobStore.removeBlob(container, name);
+            throw new IOException("object " + name + " has ETag " + eTag + ", its parts make " +
+                  ETags.composite(parts) + "; removed it");
+         }
+         return eTag;
+      } catch (ExecutionException e) {
+         resumeLater(mpu, stateFile);
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         resumeLater(mpu, stateFile);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while uploading " + file);
+      } catch (RuntimeException e) {
+         resumeLater(mpu, stateFile);
+         throw e;
+      } finally {
+         if (scheduler == null) {
+            executor.shutdownNow();
+         } else {
+            // Other uploads go on, only the parts of this one are dropped.
+            for (Future<MultipartPart> future : futures) {
+               future.cancel(true);
+            }
+         }
+         channel.close();
+         state.close();
+      }
+   }
+
+   /**
+    * Picks a part size between the limits of the provider: small enough for every thread to get a few parts,
+    * at most {@link #TARGET_PART_SIZE} unless the file would need more parts than the provider allows.
+    */
+   long partSize(long length) {
+      long minimum = blobStore.getMinimumMultipartPartSize();
+      long maximum = blobStore.getMaximumMultipartPartSize();
+      int maximumParts = blobStore.getMaximumNumberOfParts();
+
+      if (buffers != null && buffers.getBufferSize() < maximum) {
+         // A part has to fit in a staging buffer.
+         maximum = buffers.getBufferSize();
+      }
+
+      if (fixedPartSize > 0) {
+         if (fixedPartSize < minimum || fixedPartSize > maximum) {
+            throw new IllegalArgumentException("part size " + fixedPartSize + " is not between " + minimum +
+                  " and " + maximum);
+         }
+         if ((length + fixedPartSize - 1) / fixedPartSize > maximumParts) {
+            throw new IllegalArgumentException("parts of " + fixedPartSize + " bytes are too small for " + length +
+                  " bytes, the provider accepts at most " + maximumParts + " parts");
+         }
+         return fixedPartSize;
+      }
+
+      long size = Math.min(TARGET_PART_SIZE, length / ((long) threads * PARTS_PER_THREAD));
+      size = Math.max(size, minimum);
+      size = Math.max(size, (length + maximumParts - 1) / maximumParts);
+      size = Math.max(size, MB);
+      // Whole megabytes are easier on the eye and on the disk.
+      size = (size + MB - 1) / MB * MB;
+      if (size > maximum) {
+         throw new IllegalArgumentException("a file of " + length + " bytes needs parts of " + size +
+               " bytes, parts can be at most " + maximum);
+      }
+      return size;
+   }
+
+   private Callable<MultipartPart> uploadPart(final MultipartUpload mpu, final UploadState state,
+                                              final int partNumber, final FileSlice slice) {
+      return new Callable<MultipartPart>() {
+         @Override
+         public MultipartPart call() throws IOException {
+            ByteBuffer buffer = null;
+            // Parts of a resumed upload may have been cut larger than the buffers, those are streamed.
+            if (buffers != null && slice.size() <= buffers.getBufferSize()) {
+               try {
+                  buffer = buffers.acquire();
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new InterruptedIOException("interrupted while waiting for a buffer for part " + partNumber);
+               }
+            }
+            long start = System.nanoTime();
+            MultipartPart part;
+            try {
+               if (buffer != null) {
+                  slice.stage(buffer);
+               }
+               ByteSource source = scheduler != null ? scheduler.throttle(slice) : slice;
+               for (int sends = 1; ; sends++) {
+                  Payload payload = Payloads.newByteSourcePayload(source);
+                  payload.getContentMetadata().setContentLength(slice.size());
+                  part = blobStore.uploadMultipartPart(mpu, partNumber, payload);
+                  if (!verify || !ETags.contradicts(part.partETag(), slice.getMd5())) {
+                     break;
+                  }
+                  if (sends == MAX_SENDS) {
+                     throw new IOException("part " + partNumber + " has ETag " + part.partETag() + " after " + sends +
+                           " sends, its bytes have MD5 " + slice.getMd5());
+                  }
+                  // Sending it again replaces the part with the same number.
+                  System.err.println("Part " + partNumber + " has ETag " + part.partETag() + ", its bytes have MD5 " +
+                        slice.getMd5() + "; sending it again");
+               }
+            } finally {
+               if (buffer != null) {
+                  slice.unstage();
+                  buffers.release(buffer);
+               }
+            }
+            timeline.record(partNumber, slice, start, System.nanoTime());
+            state.done(part);
+            return part;
+         }
+      };
+   }
+
+   /**
+    * Sends a file that fits in a single part, on a thread of the scheduler if there is one.
+    */
+   private String putBlob(final String container, final Blob blob) throws IOException {
+      if (scheduler == null) {
+         return blobStore.putBlob(container, blob);
+      }
+      try {
+         return scheduler.getExecutor().submit(new Callable<String>() {
+            @Override
+            public String call() {
+               return blobStore.putBlob(container, blob);
+            }
+         }).get();
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while uploading " + blob.getMetadata().getName());
+      }
+   }
+
+   /**
+    * Checks the parts recorded locally against the parts the provider lists for the upload.
+    *
+    * @return the parts that the provider holds with the same size and ETag, by part number.
+    */
+   private Map<Integer, MultipartPart> validate(MultipartUpload mpu, Map<Integer, MultipartPart> recorded) {
+      Map<Integer, MultipartPart> listed = new HashMap<Integer, MultipartPart>();
+      for (MultipartPart part : blobStore.listMultipartUpload(mpu)) {
+         listed.put(part.partNumber(), part);
+      }
+      Map<Integer, MultipartPart> valid = new HashMap<Integer, MultipartPart>();
+      for (MultipartPart part : recorded.values()) {
+         MultipartPart remote = listed.get(part.partNumber());
+         if (remote != null && remote.partSize() == part.partSize() &&
+               ETags.normalize(remote.partETag()).equals(ETags.normalize(part.partETag()))) {
+            valid.put(part.partNumber(), part);
+         }
+      }
+      return valid;
+   }
+
+   private void resumeLater(MultipartUpload mpu, File stateFile) {
+      System.err.println("Upload " + mpu.id() + " failed; run again to resume it from " + stateFile);
+   }
+
+   /**
+    * Aborts an upload that can no longer be resumed and forgets about it.
+    */
+   private void abandon(UploadState state) throws IOException {
+      String[] key = state.getKey().split("\t");
+      try {
+         blobStore.abortMultipartUpload(MultipartUpload.create(key[0], key[1], state.getUploadId(), null, null));
+      } catch (RuntimeException e) {
+         // Providers expire abandoned uploads eventually anyway.
+         System.err.println("Could not abort upload " + state.getUploadId() + ": " + e.getMessage());
+      }
+      state.delete();
+   }
+}
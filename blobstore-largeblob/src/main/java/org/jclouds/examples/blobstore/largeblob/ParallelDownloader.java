@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import static org.jclouds.blobstore.options.GetOptions.Builder.range;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.GetOptions;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Downloads an object with concurrent range requests, each written straight to its place in the target file.
+ *
+ * The target file is set to the length of the object first, so every chunk can be written at its offset with
+ * positional writes while the other chunks are still in flight. A chunk that fails is requested again from the
+ * first byte that did not make it to disk, a few times, before the download gives up. Chunks that are complete
+ * are recorded in a {@link DownloadState}, so running the same download again only fetches what is missing.
+ *
+ * The chunks depend on the length of the object alone, so a download can be resumed with any number of threads.
+ * Every range is requested from the version with the ETag the download started with, and a target file of another
+ * length than the object is not trusted to hold the chunks recorded as done; the download then starts over. An
+ * answer must hold exactly the range asked for, so that a server or proxy that ignores ranges and sends the whole
+ * object fails the chunk instead of writing the start of the object at its offset.
+ */
+public class ParallelDownloader {
+   /**
+    * Largest chunk to aim for.
+    */
+   public static final long TARGET_CHUNK_SIZE = 32L * 1024 * 1024;
+   /**
+    * Chunks to cut a smaller object into, so that it is still fetched in parallel.
+    */
+   private static final int MIN_CHUNKS = 16;
+   private static final long MB = 1024 * 1024;
+   private static final int MAX_ATTEMPTS = 5;
+   private static final long RETRY_DELAY_MILLIS = 1000;
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final String CONTENT_RANGE = "Content-Range";
+
+   private final BlobStore blobStore;
+   private final int threads;
+
+   public ParallelDownloader(BlobStore blobStore, int threads) {
+      this.blobStore = blobStore;
+      this.threads = threads;
+   }
+
+   /**
+    * Downloads the object into the file, resuming an earlier attempt where possible.
+    *
+    * @return the number of bytes of the object.
+    */
+   public long download(String container, String name, File file) throws IOException {
+      BlobMetadata metadata = blobStore.blobMetadata(container, name);
+      if (metadata == null) {
+         throw new IOException("no object " + name + " in " + container);
+      }
+      long length = metadata.getContentMetadata().getContentLength();
+      String eTag = metadata.getETag();
+      long chunkSize = chunkSize(length);
+      File stateFile = new File(file.getPath() + ".download");
+      if (file.length() != length) {
+         // Truncated or replaced since, the chunks recorded as done may not be in it.
+         stateFile.delete();
+      }
+      DownloadState state = DownloadState.open(stateFile, eTag, length, chunkSize);
+
+      RandomAccessFile target = new RandomAccessFile(file, "rw");
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         if (state.isResumed()) {
+            System.out.println("Resuming with " + state.getDoneCount() + " chunks already downloaded");
+         } else {
+            // Sparse on most file systems, so this costs nothing until the chunks arrive.
+            target.setLength(length);
+         }
+         FileChannel channel = target.getChannel();
+
+         List<Future<Void>> futures = new ArrayList<Future<Void>>();
+         int chunk = 0;
+         for (long offset = 0; offset < length; offset += chunkSize, chunk++) {
+            if (!state.isDone(chunk)) {
+               futures.add(executor.submit(downloadChunk(container, name, eTag, length, channel, state, chunk,
+                     offset, Math.min(chunkSize, length - offset))));
+            }
+         }
+         for (Future<Void> future : futures) {
+            future.get();
+         }
+         state.delete();
+         return length;
+      } catch (ExecutionException e) {
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while downloading " + name);
+      } finally {
+         executor.shutdownNow();
+         state.close();
+         target.close();
+      }
+   }
+
+   static long chunkSize(long length) {
+      long size = Math.min(TARGET_CHUNK_SIZE, length / MIN_CHUNKS);
+      size = Math.max(size, MB);
+      return (size + MB - 1) / MB * MB;
+   }
+
+   private Callable<Void> downloadChunk(final String container, final String name, final String eTag,
+                                        final long size, final FileChannel channel, final DownloadState state,
+                                        final int chunk, final long offset, final long length) {
+      return new Callable<Void>() {
+         @Override
+         public Void call() throws IOException, InterruptedException {
+            long written = 0;
+            for (int attempt = 1; ; attempt++) {
+               try {
+                  written += fetch(container, name, eTag, size, channel, offset + written, length - written);
+                  if (written == length) {
+                     channel.force(false);
+                     state.done(chunk);
+                     return null;
+                  }
+                  throw new EOFException("chunk " + chunk + " ended after " + written + " of " + length + " bytes");
+               } catch (IOException e) {
+                  if (attempt == MAX_ATTEMPTS) {
+                     throw e;
+                  }
+                  retry(chunk, attempt, e);
+               } catch (RuntimeException e) {
+                  if (attempt == MAX_ATTEMPTS) {
+                     throw e;
+                  }
+                  retry(chunk, attempt, e);
+               }
+            }
+         }
+      };
+   }
+
+   /**
+    * Requests one range and writes it at its offset, as far as it gets.
+    *
+    * @param size the length of the whole object.
+    * @return the number of bytes written, which is less than length when the connection broke.
+    * @throws IOException if the answer is not the range asked for.
+    */
+   private long fetch(String container, String name, String eTag, long size, FileChannel channel, long offset,
+                      long length) throws IOException {
+      GetOptions options = range(offset, offset + length - 1);
+      if (eTag != null) {
+         options.ifETagMatches(eTag);
+      }
+      Blob blob = blobStore.getBlob(container, name, options);
+      if (blob == null) {
+         throw new IOException("object " + name + " disappeared from " + container);
+      }
+      InputStream in = blob.getPayload().openStream();
+      long written = 0;
+      try {
+         checkRange(blob, name, offset, length, size);
+         byte[] bytes = new byte[BUFFER_SIZE];
+         ByteBuffer buffer = ByteBuffer.wrap(bytes);
+         while (written < length) {
+            int read;
+            try {
+               read = in.read(bytes, 0, (int) Math.min(bytes.length, length - written));
+            } catch (IOException e) {
+               // Keep what made it; the retry starts from here.
+               return written;
+            }
+            if (read < 0) {
+               return written;
+            }
+            buffer.clear();
+            buffer.limit(read);
+            while (buffer.hasRemaining()) {
+               written += channel.write(buffer, offset + written);
+            }
+         }
+         return written;
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Checks that the answer holds the range asked for and not, as a server or proxy that ignores ranges sends,
+    * the whole object; that is only right for a range that is the whole object.
+    */
+   private static void checkRange(Blob blob, String name, long offset, long length, long size) throws IOException {
+      if (offset == 0 && length == size) {
+         return;
+      }
+      String expected = "bytes " + offset + "-" + (offset + length - 1) + "/" + size;
+      for (Map.Entry<String, String> header : blob.getAllHeaders().entries()) {
+         if (CONTENT_RANGE.equalsIgnoreCase(header.getKey())) {
+            if (expected.equals(header.getValue().trim())) {
+               return;
+            }
+            throw new IOException("asked for " + expected + " of " + name + ", got " + header.getValue());
+         }
+      }
+      throw new IOException("asked for " + expected + " of " + name + ", got no Content-Range, the range was " +
+            "ignored");
+   }
+
+   private static void retry(int chunk, int attempt, Exception e) throws InterruptedException {
+      System.out.println("Chunk " + chunk + " failed with " + e + ", attempt " + (attempt + 1) + " of " +
+            MAX_ATTEMPTS);
+      Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+   }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Threads and bandwidth shared by every upload of a batch.
+ *
+ * All parts of all files run on one pool, so the number of parts in flight is the same however many files are
+ * being uploaded, and the link stays busy when one file is at its last parts and the next one starts. The optional
+ * bandwidth cap is a token bucket of bytes, a Guava {@link RateLimiter}, that every part draws from as it is read
+ * by the HTTP layer, i.e. as it is sent; it holds up to a second of unused bandwidth for a burst.
+ */
+public class PartScheduler {
+   private final int threads;
+   private final ExecutorService executor;
+   private final RateLimiter limiter;
+
+   /**
+    * @param bytesPerSecond the bandwidth cap over all parts, or 0 for none.
+    */
+   public PartScheduler(int threads, long bytesPerSecond) {
+      this.threads = threads;
+      this.executor = Executors.newFixedThreadPool(threads);
+      this.limiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+   }
+
+   public int getThreads() {
+      return threads;
+   }
+
+   /**
+    * @return the pool to run parts on. Do not wait on it from its own threads.
+    */
+   public ExecutorService getExecutor() {
+      return executor;
+   }
+
+   /**
+    * @return the source, read no faster than the bandwidth cap allows together with every other throttled source.
+    */
+   public ByteSource throttle(final ByteSource source) {
+      if (limiter == null) {
+         return source;
+      }
+      return new ByteSource() {
+         @Override
+         public long size() throws IOException {
+            return source.size();
+         }
+
+         @Override
+         public InputStream openStream() throws IOException {
+            return new FilterInputStream(source.openStream()) {
+               @Override
+               public int read() throws IOException {
+                  int b = super.read();
+                  if (b != -1) {
+                     limiter.acquire(1);
+                  }
+                  return b;
+               }
+
+               @Override
+               public int read(byte[] bytes, int off, int len) throws IOException {
+                  int count = super.read(bytes, off, len);
+                  if (count > 0) {
+                     limiter.acquire(count);
+                  }
+                  return count;
+               }
+            };
+         }
+      };
+   }
+
+   public void shutdown() {
+      executor.shutdownNow();
+   }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * What every part of an upload spent its time on: reading the file, hashing, and sending, which is everything
+ * else, i.e. waiting for the network and the provider.
+ *
+ * The timeline can be written as CSV or JSON, one record per part with its start relative to the start of the
+ * upload, to see how parts overlap; {@link #printSummary()} gives the median and tail of each phase, which is
+ * usually enough to tell whether the disk, the CPU or the network is the limit.
+ */
+public class PartTimeline {
+   private static final double MILLIS = 1e6;
+
+   /**
+    * One part, as it ended.
+    */
+   public static class Entry {
+      final int partNumber;
+      final long offset;
+      final long bytes;
+      final int retries;
+      final long startNanos;
+      final long readNanos;
+      final long hashNanos;
+      final long totalNanos;
+
+      Entry(int partNumber, long offset, long bytes, int retries, long startNanos, long readNanos, long hashNanos,
+            long totalNanos) {
+         this.partNumber = partNumber;
+         this.offset = offset;
+         this.bytes = bytes;
+         this.retries = retries;
+         this.startNanos = startNanos;
+         this.readNanos = readNanos;
+         this.hashNanos = hashNanos;
+         this.totalNanos = totalNanos;
+      }
+
+      long sendNanos() {
+         return Math.max(0, totalNanos - readNanos - hashNanos);
+      }
+   }
+
+   private final long start = System.nanoTime();
+   private final List<Entry> entries = new ArrayList<Entry>();
+
+   /**
+    * Records a part that was sent from the slice, between the two System.nanoTime() values.
+    */
+   public void record(int partNumber, FileSlice slice, long startNanos, long endNanos) {
+      Entry entry = new Entry(partNumber, slice.getOffset(), slice.size(), Math.max(0, slice.getOpenCount() - 1),
+            startNanos - start, slice.getReadNanos(), slice.getHashNanos(), endNanos - startNanos);
+      synchronized (entries) {
+         entries.add(entry);
+      }
+   }
+
+   /**
+    * Records a part that was read from a stream and sent from memory: reading took readNanos from startNanos on,
+    * hashing hashNanos, and the part was stored at endNanos after the given number of retries.
+    */
+   public void record(int partNumber, long offset, long bytes, int retries, long startNanos, long readNanos,
+                      long hashNanos, long endNanos) {
+      Entry entry = new Entry(partNumber, offset, bytes, retries, startNanos - start, readNanos, hashNanos,
+            endNanos - startNanos);
+      synchronized (entries) {
+         entries.add(entry);
+      }
+   }
+
+   /**
+    * Writes the timeline as JSON if the file name ends in .json, as CSV otherwise.
+    */
+   public void write(File file) throws IOException {
+      List<Entry> sorted = sortedEntries();
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")));
+      try {
+         boolean json = file.getName().endsWith(".json");
+         if (json) {
+            out.println("[");
+         } else {
+            out.println("part,offset,bytes,start_ms,read_ms,hash_ms,send_ms,total_ms,retries");
+         }
+         for (int i = 0; i < sorted.size(); i++) {
+            Entry e = sorted.get(i);
+            if (json) {
+               out.printf("  {\"part\": %d, \"offset\": %d, \"bytes\": %d, \"start_ms\": %.3f, \"read_ms\": %.3f, " +
+                     "\"hash_ms\": %.3f, \"send_ms\": %.3f, \"total_ms\": %.3f, \"retries\": %d}%s%n",
+                     e.partNumber, e.offset, e.bytes, e.startNanos / MILLIS, e.readNanos / MILLIS,
+                     e.hashNanos / MILLIS, e.sendNanos() / MILLIS, e.totalNanos / MILLIS, e.retries,
+                     i < sorted.size() - 1 ? "," : "");
+            } else {
+               out.printf("%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%d%n", e.partNumber, e.offset, e.bytes,
+                     e.startNanos / MILLIS, e.readNanos / MILLIS, e.hashNanos / MILLIS, e.sendNanos() / MILLIS,
+                     e.totalNanos / MILLIS, e.retries);
+            }
+         }
+         if (json) {
+            out.println("]");
+         }
+      } finally {
+         out.close();
+      }
+      if (out.checkError()) {
+         throw new IOException("could not write " + file);
+      }
+   }
+
+   public void printSummary() {
+      List<Entry> sorted = sortedEntries();
+      if (sorted.isEmpty()) {
+         return;
+      }
+      int n = sorted.size();
+      double[] read = new double[n];
+      double[] hash = new double[n];
+      double[] send = new double[n];
+      double[] total = new double[n];
+      double[] throughput = new double[n];
+      int retries = 0;
+      for (int i = 0; i < n; i++) {
+         Entry e = sorted.get(i);
+         read[i] = e.readNanos / MILLIS;
+         hash[i] = e.hashNanos / MILLIS;
+         send[i] = e.sendNanos() / MILLIS;
+         total[i] = e.totalNanos / MILLIS;
+         throughput[i] = e.totalNanos > 0 ? e.bytes / (e.totalNanos / 1e9) / (1024 * 1024) : 0;
+         retries += e.retries;
+      }
+      System.out.println(n + " parts sent, " + retries + " retries");
+      System.out.println("              p50       p99       max");
+      printRow("read ms", read);
+      printRow("hash ms", hash);
+      printRow("send ms", send);
+      printRow("total ms", total);
+      printRow("MB/s/part", throughput);
+   }
+
+   private static void printRow(String name, double[] values) {
+      Arrays.sort(values);
+      System.out.printf("%-10s %8.1f  %8.1f  %8.1f%n", name, percentile(values, 50), percentile(values, 99),
+            values[values.length - 1]);
+   }
+
+   /**
+    * Nearest rank percentile of sorted values.
+    */
+   static double percentile(double[] sorted, double percentile) {
+      int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+      return sorted[Math.max(0, rank - 1)];
+   }
+
+   private List<Entry> sortedEntries() {
+      List<Entry> sorted;
+      synchronized (entries) {
+         sorted = new ArrayList<Entry>(entries);
+      }
+      Collections.sort(sorted, new Comparator<Entry>() {
+         @Override
+         public int compare(Entry a, Entry b) {
+            return a.partNumber - b.partNumber;
+         }
+      });
+      return sorted;
+   }
+}
@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.io.payloads.BaseMutableContentMetadata;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+
+/**
+ * Uploads a stream of unknown length, e.g. the standard input, as a multipart upload, without staging it on disk.
+ *
+ * The stream is read part by part into a ring of buffers from a {@link DirectBufferPool}, all of the same size,
+ * which is the part size. As soon as a buffer is full it is sent while the next one fills, and once a part is
+ * stored its buffer is used again; reading waits when all buffers are in flight, so memory stays at the size of
+ * the ring whatever the length of the stream. At the end of the stream, the last part is sent and the upload is
+ * completed. A stream that ends within the first part is sent with a plain put.
+ *
+ * Every buffer is hashed before it is sent, and the part ETags and the ETag of the object are checked as
+ * {@link MultipartUploader} does; a part that does not match is sent again from its buffer.
+ *
+ * A stream cannot be read twice, so unlike {@link MultipartUploader} a failed upload is aborted rather than kept
+ * to be resumed. The ring should have a buffer more than there are threads, to read a part while the others are
+ * sent.
+ */
+public class StreamingUploader {
+   /**
+    * Times a part whose ETag does not match its bytes is sent, before the upload fails.
+    */
+   private static final int MAX_SENDS = 3;
+
+   private final BlobStore blobStore;
+   private final int threads;
+   private final DirectBufferPool ring;
+   private final PartTimeline timeline = new PartTimeline();
+   private final boolean verify = ETags.verify();
+
+   /**
+    * @param ring the buffers to read parts into; their size is the part size.
+    */
+   public StreamingUploader(BlobStore blobStore, int threads, DirectBufferPool ring) {
+      this.blobStore = blobStore;
+      this.threads = threads;
+      this.ring = ring;
+   }
+
+   /**
+    * @return the parts sent by this uploader so far, with where their time went.
+    */
+   public PartTimeline getTimeline() {
+      return timeline;
+   }
+
+   /**
+    * Uploads the stream, up to its end, with the name and content metadata of the blob; the payload of the blob
+    * is replaced. The stream is not closed.
+    *
+    * @return the ETag of the object.
+    */
+   public String upload(String container, Blob blob, InputStream in) throws IOException {
+      long partSize = ring.getBufferSize();
+      long minimum = blobStore.getMinimumMultipartPartSize();
+      long maximum = blobStore.getMaximumMultipartPartSize();
+      if (partSize < minimum || partSize > maximum) {
+         throw new IllegalArgumentException("part size " + partSize + " is not between " + minimum + " and " +
+               maximum);
+      }
+      int maximumParts = blobStore.getMaximumNumberOfParts();
+      ReadableByteChannel channel = Channels.newChannel(in);
+
+      ByteBuffer buffer = acquire();
+      long start = System.nanoTime();
+      boolean end = fill(channel, buffer);
+      long readNanos = System.nanoTime() - start;
+      if (end) {
+         try {
+            return putBlob(container, blob, buffer);
+         } finally {
+            ring.release(buffer);
+         }
+      }
+
+      MultipartUpload mpu;
+      try {
+         mpu = blobStore.initiateMultipartUpload(container, blob.getMetadata(), new PutOptions());
+      } catch (RuntimeException e) {
+         ring.release(buffer);
+         throw e;
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<PartTask> tasks = new ArrayList<PartTask>();
+      List<Future<MultipartPart>> futures = new ArrayList<Future<MultipartPart>>();
+      try {
+         long offset = 0;
+         for (int partNumber = 1; buffer != null; partNumber++) {
+            if (partNumber > maximumParts) {
+               throw new IOException("the stream is longer than " + maximumParts + " parts of " + partSize +
+                     " bytes, the most the provider accepts");
+            }
+            long bytes = buffer.remaining();
+            PartTask task = new PartTask(mpu, partNumber, offset, buffer, start, readNanos);
+            tasks.add(task);
+            // From here on the buffer belongs to the task.
+            buffer = null;
+            futures.add(executor.submit(task));
+            offset += bytes;
+            if (end) {
+               break;
+            }
+
+            failFast(futures);
+            buffer = acquire();
+            start = System.nanoTime();
+            end = fill(channel, buffer);
+            readNanos = System.nanoTime() - start;
+            if (!buffer.hasRemaining()) {
+               // The stream ended right after a full part.
+               ring.release(buffer);
+               buffer = null;
+            }
+         }
+
+         List<MultipartPart> parts = new ArrayList<MultipartPart>(futures.size());
+         for (Future<MultipartPart> future : futures) {
+            parts.add(future.get());
+         }
+         String eTag = blobStore.completeMultipartUpload(mpu, parts);
+         if (verify && ETags.contradicts(eTag, parts)) {
+            blobStore.removeBlob(container, mpu.blobName());
+            throw new IOException("object " + mpu.blobName() + " has ETag " + eTag + ", its parts make " +
+                  ETags.composite(parts) + "; removed it");
+         }
+         return eTag;
+      } catch (ExecutionException e) {
+         abort(mpu);
+         Throwables.propagateIfPossible(e.getCause(), IOException.class);
+         throw new IOException(e.getCause());
+      } catch (InterruptedException e) {
+         abort(mpu);
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while uploading a stream to " + mpu.blobName());
+      } catch (IOException e) {
+         abort(mpu);
+         throw e;
+      } catch (RuntimeException e) {
+         abort(mpu);
+         throw e;
+      } finally {
+         executor.shutdownNow();
+         if (buffer != null) {
+            ring.release(buffer);
+         }
+         // Parts that never got to run still hold their buffers.
+         for (PartTask task : tasks) {
+            if (task.claim()) {
+               ring.release(task.buffer);
+            }
+         }
+      }
+   }
+
+   private ByteBuffer acquire() throws InterruptedIOException {
+      try {
+         return ring.acquire();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("interrupted while waiting for a buffer");
+      }
+   }
+
+   /**
+    * Reads from the channel until the buffer is full or the stream ends, and flips the buffer.
+    *
+    * @return true at the end of the stream.
+    */
+   private static boolean fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+      boolean end = false;
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer) < 0) {
+            end = true;
+            break;
+         }
+      }
+      buffer.flip();
+      return end;
+   }
+
+   /**
+    * Stops reading the stream as soon as a part failed, rather than at the end.
+    */
+   private static void failFast(List<Future<MultipartPart>> futures) throws ExecutionException,
+         InterruptedException {
+      for (Future<MultipartPart> future : futures) {
+         if (future.isDone()) {
+            future.get();
+         }
+      }
+   }
+
+   private String putBlob(String container, Blob blob, ByteBuffer buffer) {
+      Payload payload = Payloads.newByteSourcePayload(DirectBufferPool.asByteSource(buffer));
+      payload.setContentMetadata(BaseMutableContentMetadata.fromContentMetadata(
+            blob.getMetadata().getContentMetadata()));
+      payload.getContentMetadata().setContentLength((long) buffer.remaining());
+      blob.setPayload(payload);
+      return blobStore.putBlob(container, blob);
+   }
+
+   private void abort(MultipartUpload mpu) {
+      try {
+         blobStore.abortMultipartUpload(mpu);
+      } catch (RuntimeException e) {
+         // Providers expire abandoned uploads eventually anyway.
+         System.err.println("Could not abort upload " + mpu.id() + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Sends one full buffer as a part and gives the buffer back to the ring.
+    */
+   private class PartTask implements Callable<MultipartPart> {
+      final MultipartUpload mpu;
+      final int partNumber;
+      final long offset;
+      final ByteBuffer buffer;
+      final long startNanos;
+      final long readNanos;
+      private final AtomicBoolean claimed = new AtomicBoolean();
+
+      PartTask(MultipartUpload mpu, int partNumber, long offset, ByteBuffer buffer, long startNanos,
+               long readNanos) {
+         this.mpu = mpu;
+         this.partNumber = partNumber;
+         this.offset = offset;
+         this.buffer = buffer;
+         this.startNanos = startNanos;
+         this.readNanos = readNanos;
+      }
+
+      /**
+       * @return true for whoever gets to release the buffer: the task when it runs, or the uploader for a task
+       *         that never ran.
+       */
+      boolean claim() {
+         return claimed.compareAndSet(false, true);
+      }
+
+      @Override
+      public MultipartPart call() throws IOException {
+         if (!claim()) {
+            return null;
+         }
+         try {
+            long bytes = buffer.remaining();
+            long hashStart = System.nanoTime();
+            HashCode md5 = ETags.md5(buffer);
+            long hashNanos = System.nanoTime() - hashStart;
+            for (int sends = 1; ; sends++) {
+               Payload payload = Payloads.newByteSourcePayload(DirectBufferPool.asByteSource(buffer));
+               payload.getContentMetadata().setContentLength(bytes);
+               MultipartPart part = blobStore.uploadMultipartPart(mpu, partNumber, payload);
+               if (!verify || !ETags.contradicts(part.partETag(), md5)) {
+                  timeline.record(partNumber, offset, bytes, sends - 1, startNanos, readNanos, hashNanos,
+                        System.nanoTime());
+                  return part;
+               }
+               if (sends == MAX_SENDS) {
+                  throw new IOException("part " + partNumber + " has ETag " + part.partETag() + " after " + sends +
+                        " sends, its bytes have MD5 " + md5);
+               }
+               System.err.println("Part " + partNumber + " has ETag " + part.partETag() + ", its bytes have MD5 " +
+                     md5 + "; sending it again");
+            }
+         } finally {
+            ring.release(buffer);
+         }
+      }
+   }
+}
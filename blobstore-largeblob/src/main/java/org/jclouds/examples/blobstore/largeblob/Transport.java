@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import org.jclouds.http.apachehc.config.ApacheHCHttpCommandExecutorServiceModule;
+import org.jclouds.http.config.JavaUrlHttpCommandExecutorServiceModule;
+import org.jclouds.http.okhttp.config.OkHttpCommandExecutorServiceModule;
+import org.jclouds.logging.log4j.config.Log4JLoggingModule;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Module;
+
+/**
+ * The HTTP layers jclouds can send requests with.
+ *
+ * Pick one with -Dlargeblob.transport=javaurl|apachehc|okhttp; the default is javaurl.
+ */
+public enum Transport {
+   /**
+    * java.net.HttpURLConnection, no extra dependencies.
+    */
+   JAVAURL {
+      @Override
+      Module executorModule() {
+         return new JavaUrlHttpCommandExecutorServiceModule();
+      }
+   },
+   /**
+    * Apache HttpClient, with its own connection pool.
+    */
+   APACHEHC {
+      @Override
+      Module executorModule() {
+         return new ApacheHCHttpCommandExecutorServiceModule();
+      }
+   },
+   /**
+    * OkHttp, with its own connection pool.
+    */
+   OKHTTP {
+      @Override
+      Module executorModule() {
+         return new OkHttpCommandExecutorServiceModule();
+      }
+   };
+
+   public static final String PROPERTY = "largeblob.transport";
+
+   abstract Module executorModule();
+
+   /**
+    * @return the modules of a context that sends its requests with this transport.
+    */
+   public Iterable<Module> modules() {
+      return ImmutableSet.<Module>of(executorModule(), new Log4JLoggingModule());
+   }
+
+   public static Transport fromName(String name) {
+      try {
+         return valueOf(name.toUpperCase());
+      } catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException("unknown transport " + name + ", expected javaurl, apachehc or okhttp");
+      }
+   }
+
+   /**
+    * @return the transport chosen with the {@link #PROPERTY} system property.
+    */
+   public static Transport fromSystemProperty() {
+      return fromName(System.getProperty(PROPERTY, "javaurl"));
+   }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jclouds.blobstore.domain.MultipartPart;
+
+import com.google.common.io.Files;
+
+/**
+ * Remembers a multipart upload in a small text file next to the uploaded file, so that it can be resumed.
+ *
+ * The first line is the key of the upload, which ties it to the container, the object and the file as it was,
+ * followed by the part size and the upload id. Every following line is a part that was stored: number, size and
+ * ETag. A part that is recorded twice counts with its last line.
+ */
+public class UploadState {
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   private final File file;
+   private final String key;
+   private final long partSize;
+   private final String uploadId;
+   private final Map<Integer, MultipartPart> parts = new TreeMap<Integer, MultipartPart>();
+   private Writer writer;
+
+   private UploadState(File file, String key, long partSize, String uploadId) {
+      this.file = file;
+      this.key = key;
+      this.partSize = partSize;
+      this.uploadId = uploadId;
+   }
+
+   /**
+    * @return the upload recorded in the file, or null if there is none.
+    */
+   public static UploadState read(File file) throws IOException {
+      if (!file.exists()) {
+         return null;
+      }
+      List<String> lines = Files.readLines(file, UTF_8);
+      if (lines.isEmpty()) {
+         return null;
+      }
+      String header = lines.get(0);
+      int idSeparator = header.lastIndexOf('\t');
+      int sizeSeparator = idSeparator > 0 ? header.lastIndexOf('\t', idSeparator - 1) : -1;
+      if (sizeSeparator < 0 || !header.substring(sizeSeparator + 1, idSeparator).matches("[0-9]+")) {
+         return null;
+      }
+      UploadState state = new UploadState(file, header.substring(0, sizeSeparator),
+            Long.parseLong(header.substring(sizeSeparator + 1, idSeparator)), header.substring(idSeparator + 1));
+      for (String line : lines.subList(1, lines.size())) {
+         String[] fields = line.split("\t");
+         // A line cut short by a crash is simply not counted; the part is uploaded again.
+         if (fields.length == 3 && fields[0].matches("[0-9]+") && fields[1].matches("[0-9]+")) {
+            int number = Integer.parseInt(fields[0]);
+            state.parts.put(number, MultipartPart.create(number, Long.parseLong(fields[1]), fields[2]));
+         }
+      }
+      state.writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+      return state;
+   }
+
+   /**
+    * Starts a new file for a new upload, replacing whatever was there.
+    */
+   public static UploadState create(File file, String key, long partSize, String uploadId) throws IOException {
+      UploadState state = new UploadState(file, key, partSize, uploadId);
+      state.writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+      state.writer.write(key + "\t" + partSize + "\t" + uploadId + "\n");
+      state.writer.flush();
+      return state;
+   }
+
+   public String getKey() {
+      return key;
+   }
+
+   public long getPartSize() {
+      return partSize;
+   }
+
+   public String getUploadId() {
+      return uploadId;
+   }
+
+   /**
+    * @return the parts recorded so far, by part number.
+    */
+   public synchronized Map<Integer, MultipartPart> getParts() {
+      return new TreeMap<Integer, MultipartPart>(parts);
+   }
+
+   public synchronized void done(MultipartPart part) throws IOException {
+      parts.put(part.partNumber(), part);
+      writer.write(part.partNumber() + "\t" + part.partSize() + "\t" + part.partETag() + "\n");
+      writer.flush();
+   }
+
+   public synchronized void close() throws IOException {
+      writer.close();
+   }
+
+   /**
+    * Removes the state once the upload is complete, or abandoned.
+    */
+   public void delete() throws IOException {
+      close();
+      file.delete();
+   }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for S3, good enough for the "s3" api with path style buckets to create a bucket and run a multipart
+ * upload: initiate, upload parts, complete or abort. Bodies are read and thrown away, without hashing, so that the
+ * server costs as little CPU as possible next to the client; every ETag is made up, and unlike an MD5 so that the
+ * uploader does not check it.
+ *
+ * Use {@link #getEndpoint()} as endpoint and any identity and credential.
+ */
+public class LocalS3Server {
+   private final HttpServer server;
+   private final ExecutorService executor = Executors.newCachedThreadPool();
+   private final AtomicLong bytesReceived = new AtomicLong();
+
+   public LocalS3Server() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/", new HttpHandler() {
+         @Override
+         public void handle(HttpExchange exchange) throws IOException {
+            try {
+               dispatch(exchange);
+            } finally {
+               exchange.close();
+            }
+         }
+      });
+      server.setExecutor(executor);
+   }
+
+   public void start() {
+      server.start();
+   }
+
+   public void stop() {
+      server.stop(0);
+      executor.shutdownNow();
+   }
+
+   public String getEndpoint() {
+      return "http://127.0.0.1:" + server.getAddress().getPort();
+   }
+
+   public long getBytesReceived() {
+      return bytesReceived.get();
+   }
+
+   private void dispatch(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath();
+      String query = exchange.getRequestURI().getQuery();
+      boolean object = path.indexOf('/', 1) > 0;
+      drain(exchange.getRequestBody());
+
+      if ("POST".equals(method) && query != null && query.contains("uploads")) {
+         String[] bucketAndKey = path.substring(1).split("/", 2);
+         respond(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + bucketAndKey[0] + "</Bucket>" +
+               "<Key>" + bucketAndKey[1] + "</Key><UploadId>" + UUID.randomUUID() + "</UploadId>" +
+               "</InitiateMultipartUploadResult>");
+      } else if ("POST".equals(method) && query != null && query.contains("uploadId")) {
+         respond(exchange, 200, "<CompleteMultipartUploadResult><Location>" + getEndpoint() + path +
+               "</Location><ETag>\"" + fakeETag() + "\"</ETag>" +
+               "</CompleteMultipartUploadResult>");
+      } else if ("PUT".equals(method) && object) {
+         // Simple puts and parts alike.
+         exchange.getResponseHeaders().set("ETag", "\"" + fakeETag() + "\"");
+         exchange.sendResponseHeaders(200, -1);
+      } else if ("PUT".equals(method) || "HEAD".equals(method)) {
+         exchange.sendResponseHeaders(200, -1);
+      } else if ("DELETE".equals(method)) {
+         exchange.sendResponseHeaders(204, -1);
+      } else {
+         exchange.sendResponseHeaders(404, -1);
+      }
+   }
+
+   private static String fakeETag() {
+      return "local-" + UUID.randomUUID();
+   }
+
+   private void drain(InputStream in) throws IOException {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+         bytesReceived.addAndGet(read);
+      }
+   }
+
+   private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+      byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "application/xml");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+   }
+}
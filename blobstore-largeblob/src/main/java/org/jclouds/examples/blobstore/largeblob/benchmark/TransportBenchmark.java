@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.largeblob.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.Constants;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.examples.blobstore.largeblob.DirectBufferPool;
+import org.jclouds.examples.blobstore.largeblob.MultipartUploader;
+import org.jclouds.examples.blobstore.largeblob.Transport;
+import org.jclouds.s3.reference.S3Constants;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ObjectArrays;
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * A JMH benchmark of the same multipart upload with every {@link Transport} and a range of part sizes against a
+ * {@link LocalS3Server}.
+ *
+ * The score is uploads per second; the "megabytes" counter next to it is the same in MB/s, and "cpuSecondsPerGB"
+ * is the CPU time of the process per GB uploaded, sampled around every upload. Allocation comes from the gc
+ * profiler, which {@link #main(String[])} turns on: gc.alloc.rate in MB/s and gc.alloc.rate.norm in bytes per
+ * upload. The stand-in server runs in the benchmark JVM and its share of both is the same for every transport.
+ *
+ * With buffers above 0 the parts are staged in that many direct buffers of the part size, to compare the
+ * allocation rate with parts streamed from the file.
+ *
+ * Usage is: java TransportBenchmark [JMH options], e.g. -p partSizeMB=8,32 -p fileSizeMB=1024 -p buffers=0,5 -f 2
+ *
+ * By default a file of 512MB is uploaded in parts of 8, 32 and 64MB with 4 threads and without buffers, in one fork
+ * with one warmup and three measured iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class TransportBenchmark {
+   private static final String CONTAINER = "bench";
+   private static final long MB = 1024 * 1024;
+
+   @Param({ "JAVAURL", "APACHEHC", "OKHTTP" })
+   public Transport transport;
+
+   @Param({ "8", "32", "64" })
+   public long partSizeMB;
+
+   @Param({ "512" })
+   public long fileSizeMB;
+
+   @Param({ "4" })
+   public int threads;
+
+   @Param({ "0" })
+   public int buffers;
+
+   private File file;
+   private LocalS3Server server;
+   private BlobStoreContext context;
+   private BlobStore blobStore;
+   private MultipartUploader uploader;
+
+   private static final OperatingSystemMXBean OS =
+         (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+   /**
+    * Counters that JMH divides by the time of the iteration, like the score.
+    */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.OPERATIONS)
+   public static class Counters {
+      /**
+       * Megabytes uploaded, so MB/s once divided.
+       */
+      public double megabytes;
+      /**
+       * The CPU seconds per GB of every upload times its duration in seconds, so once divided by the time of the
+       * iteration, which is the sum of those durations, it is the mean over the uploads weighted by their duration.
+       */
+      public double cpuSecondsPerGB;
+
+      @Setup(Level.Iteration)
+      public void reset() {
+         megabytes = 0;
+         cpuSecondsPerGB = 0;
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      org.openjdk.jmh.Main.main(ObjectArrays.concat(
+            new String[] { TransportBenchmark.class.getName(), "-prof", "gc" }, args, String.class));
+   }
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      long partSize = partSizeMB * MB;
+      file = createFile(fileSizeMB * MB);
+      server = new LocalS3Server();
+      server.start();
+
+      Properties overrides = new Properties();
+      overrides.setProperty(S3Constants.PROPERTY_S3_VIRTUAL_HOST_BUCKETS, "false");
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(threads));
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(threads));
+      context = ContextBuilder.newBuilder("s3")
+            .endpoint(server.getEndpoint())
+            .credentials("identity", "credential")
+            .overrides(overrides)
+            .modules(transport.modules())
+            .buildView(BlobStoreContext.class);
+      blobStore = context.getBlobStore();
+      blobStore.createContainerInLocation(null, CONTAINER);
+      uploader = new MultipartUploader(blobStore, threads, partSize,
+            buffers > 0 ? new DirectBufferPool(buffers, (int) partSize) : null);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      context.close();
+      server.stop();
+      file.delete();
+   }
+
+   @Benchmark
+   public String upload(Counters counters) throws IOException {
+      long cpu = OS.getProcessCpuTime();
+      long start = System.nanoTime();
+      Blob blob = blobStore.blobBuilder("object").payload(file).build();
+      String eTag = uploader.upload(CONTAINER, blob, file);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      double cpuSeconds = (OS.getProcessCpuTime() - cpu) / 1e9;
+      counters.megabytes += fileSizeMB;
+      counters.cpuSecondsPerGB += cpuSeconds / (fileSizeMB / 1024.0) * seconds;
+      return eTag;
+   }
+
+   private static File createFile(long size) throws IOException {
+      File file = File.createTempFile("transport-benchmark", ".bin");
+      byte[] chunk = new byte[(int) MB];
+      new Random(0).nextBytes(chunk);
+      OutputStream out = new FileOutputStream(file);
+      try {
+         for (long written = 0; written < size; written += chunk.length) {
+            out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+         }
+      } finally {
+         out.close();
+      }
+      return file;
+   }
+}
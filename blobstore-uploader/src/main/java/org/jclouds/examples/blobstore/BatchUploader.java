@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.io.payloads.ByteSourcePayload;
+import org.jclouds.openstack.swift.v1.SwiftApi;
+import org.jclouds.openstack.swift.v1.domain.ExtractArchiveResponse;
+import org.jclouds.openstack.swift.v1.features.BulkApi;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+
+/**
+ * Collects small files of one worker thread into a tar archive and uploads the archive in a single request once it
+ * is big enough. With 1-50KB files we are bound by round trips, not bandwidth, so this is where the time goes.
+ *
+ * For Swift based providers (when a region is given) the archive is sent with the bulk extract operation, which
+ * stores every file as its own object. For other providers the archive itself is stored as an object and the
+ * {@link Manifest} tells where each file is inside it, and the archive is marked with the {@link #ARCHIVE_METADATA}
+ * user metadata, so that it is not taken for the object of a file that is gone.
+ */
+public class BatchUploader {
+   /**
+    * User metadata key set to "true" on stored archives.
+    */
+   public static final String ARCHIVE_METADATA = "batch-archive";
+
+   private final String region;
+   private final long batchSize;
+   private final TarBatch batch;
+
+   public BatchUploader(String region, long batchSize) {
+      this.region = region;
+      this.batchSize = batchSize;
+      this.batch = new TarBatch((int) batchSize);
+   }
+
+   /**
+    * Adds a file to the current batch, and uploads the batch if it is full.
+    *
+    * @return false if the file cannot be batched and has to be uploaded on its own.
+    */
+   public boolean add(File file) throws IOException {
+      if (!offer(file)) {
+         return false;
+      }
+      if (isFull()) {
+         flush();
+      }
+      return true;
+   }
+
+   /**
+    * Adds a file to the current batch, leaving it to the caller to {@link #flush()} the batch when it is full.
+    *
+    * @return false if the file cannot be batched and has to be uploaded on its own.
+    */
+   public boolean offer(File file) throws IOException {
+      return batch.add(file, BlobUploader.objectName(file));
+   }
+
+   public boolean isFull() {
+      return batch.size() >= batchSize;
+   }
+
+   public boolean isEmpty() {
+      return batch.isEmpty();
+   }
+
+   /**
+    * Uploads whatever is in the current batch.
+    */
+   public void flush() {
+      if (batch.isEmpty()) {
+         return;
+      }
+      ByteSource archive = batch.finish();
+      try {
+         boolean uploaded = region != null ? extract(archive) : store(archive);
+         if (uploaded) {
+            BlobUploaderMain.metrics.recordUploaded(batch.entries().size(), batch.contentLength());
+         } else {
+            // Fall back to one request per file, so nothing gets lost because of a bad batch.
+            for (TarBatch.Entry entry : batch.entries()) {
+               new BlobUploader(entry.file).run();
+            }
+         }
+      } finally {
+         batch.reset();
+      }
+   }
+
+   private boolean extract(ByteSource archive) {
+      BlobStore blobStore = BlobUploader.blobStore();
+      BulkApi bulkApi = blobStore.getContext().unwrapApi(SwiftApi.class).getBulkApiForRegion(region);
+      ByteSourcePayload payload = new ByteSourcePayload(archive);
+      payload.getContentMetadata().setContentLength((long) batch.size());
+
+      long start = System.nanoTime();
+      ExtractArchiveResponse response;
+      try {
+         BlobUploaderMain.circuitBreaker.awaitClosed();
+         response = bulkApi.extractArchive(BlobUploader.container(), payload);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      } catch (RuntimeException e) {
+         BlobUploaderMain.metrics.recordRequest(System.nanoTime() - start, false);
+         BlobUploaderMain.circuitBreaker.recordFailure();
+         System.out.println("Batch extract failed with " + e + ", uploading files one by one");
+         return false;
+      }
+      boolean success = response.getErrors().isEmpty();
+      BlobUploaderMain.metrics.recordRequest(System.nanoTime() - start, success);
+      if (!success) {
+         BlobUploaderMain.circuitBreaker.recordFailure();
+         System.out.println("Batch extract failed for " + response.getErrors() + ", uploading files one by one");
+         return false;
+      }
+      BlobUploaderMain.circuitBreaker.recordSuccess();
+      for (TarBatch.Entry entry : batch.entries()) {
+         // Swift uses the md5 of an object as its ETag.
+         record(entry, entry.name, 0, entry.md5);
+      }
+      return true;
+   }
+
+   private boolean store(ByteSource archive) {
+      BlobStore blobStore = BlobUploader.blobStore();
+      String name = "batch-" + UUID.randomUUID() + ".tar";
+      HashingPayload payload = new HashingPayload(archive);
+      payload.getContentMetadata().setContentLength((long) batch.size());
+
+      for (int attempt = 1; ; attempt++) {
+         try {
+            BlobUploaderMain.circuitBreaker.awaitClosed();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+         Blob blob = blobStore.blobBuilder(name)
+               .userMetadata(ImmutableMap.of(ARCHIVE_METADATA, "true"))
+               .payload(payload)
+               .build();
+         long start = System.nanoTime();
+         String failure;
+         try {
+            String md5Remote = blobStore.putBlob(BlobUploader.container(), blob).toLowerCase();
+            String md5Local = payload.md5();
+            if (md5Remote.equals(md5Local)) {
+               BlobUploaderMain.metrics.recordRequest(System.nanoTime() - start, true);
+               BlobUploaderMain.circuitBreaker.recordSuccess();
+               for (TarBatch.Entry entry : batch.entries()) {
+                  record(entry, name, entry.offset, md5Remote);
+               }
+               return true;
+            }
+            BlobUploaderMain.metrics.recordMd5Mismatch();
+            failure = "md5 mismatch " + md5Local + " vs " + md5Remote;
+         } catch (RuntimeException e) {
+            failure = e.toString();
+         }
+         BlobUploaderMain.metrics.recordRequest(System.nanoTime() - start, false);
+         BlobUploaderMain.circuitBreaker.recordFailure();
+         if (!BlobUploaderMain.retryPolicy.shouldRetry(attempt)) {
+            System.out.println(failure + ", giving up on " + name);
+            return false;
+         }
+         System.out.println(failure + ", retrying " + name);
+         BlobUploaderMain.metrics.recordRetry();
+         try {
+            BlobUploaderMain.retryPolicy.backoff(attempt);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+   }
+
+   private void record(TarBatch.Entry entry, String object, long offset, String eTag) {
+      try {
+         if (BlobUploaderMain.manifest != null) {
+            BlobUploaderMain.manifest.record(entry.file, BlobUploader.container(), object, offset, entry.length);
+         }
+         if (BlobUploaderMain.journal != null) {
+            BlobUploaderMain.journal.record(entry.name, entry.length, entry.lastModified, entry.md5,
+                  BlobUploader.container(), eTag);
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+}
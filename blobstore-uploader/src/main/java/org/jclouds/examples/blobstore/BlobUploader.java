@@ -18,129 +18,263 @@ package org.jclouds.examples.blobstore;
 
 import static com.google.common.collect.Iterables.getOnlyElement;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Properties;
-import java.util.UUID;
 
-import org.apache.commons.io.FileUtils;
 import org.jclouds.Constants;
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.domain.Location;
-import org.jclouds.io.payloads.ByteSourcePayload;
+import org.jclouds.http.apachehc.config.ApacheHCHttpCommandExecutorServiceModule;
+import org.jclouds.io.Closeables2;
 import org.jclouds.openstack.swift.v1.blobstore.RegionScopedBlobStoreContext;
 
-import com.google.common.hash.Hashing;
-import com.google.common.io.BaseEncoding;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.inject.Module;
 
 public class BlobUploader implements Runnable {
    /**
-    * ThreadLocal allows us to use 1 container and 1 connection per thread and reuse them.
-    * They need to be static, but here we also have to instantiate them at runtime, as we pass parameters from
-    * the command line.
+    * One context for the whole run, shared by all threads. jclouds contexts are thread safe, so there is a single
+    * authentication, a single token to refresh, and one pool of connections that every upload draws from instead of
+    * a context, an executor and a set of sockets per thread.
     */
-   private static ThreadLocal<BlobStore> blobStore = new ThreadLocal<BlobStore>();
-   private static ThreadLocal<String> container = new ThreadLocal<String>();
+   private static volatile BlobStore blobStore;
+   private static volatile String container;
+   private static Closeable context;
 
    /**
-    * The only thing that really needs to be passed to this unit of work is the File to be uploaded.
-    * The credentials are here for convenience.
+    * Buffers for files up to BlobUploaderMain.bufferThreshold bytes, shared by all threads and sized after the
+    * files, so that many small uploads in flight, e.g. with --virtual-threads, do not each hold a buffer of the
+    * threshold. Idle buffers are kept up to MAX_POOLED_BYTES.
+    */
+   private static final long MAX_POOLED_BYTES = 64 * 1024 * 1024;
+   private static final BufferPool buffers = new BufferPool(MAX_POOLED_BYTES);
+
+   /**
+    * The only thing that needs to be passed to this unit of work is the File to be uploaded.
     */
-   private String username;
-   private String password;
-   private String provider;
-   private String region;
    private File file;
 
-   public
-   BlobUploader(String username, String password, String provider, String region, File file) {
-      this.username = username;
-      this.password = password;
-      this.provider = provider;
-      this.region = region;
+   public BlobUploader(File file) {
       this.file = file;
    }
 
    @Override
    public void run() {
+      String md5Remote;
+      Blob blob;
+      byte[] buffer = null;
+      HashingPayload payload;
+      long length = file.length();
+
       /**
-       * Instantiate the ThreadLocal variables when this thread runs for the first time.
-       * Instantiating this in the constructor will not work (different thread).
+       * Small files are read into a pooled buffer once, so a retry does not go back to the disk. Larger files are
+       * streamed straight from disk. Either way the md5 is computed while the bytes are sent.
        */
-      if (blobStore.get() == null) {
-         // It is usually a good idea to include the currentThread when logging parallel tasks.
-         System.out.println("Creating connection for thread " + Thread.currentThread());
-         /**
-          * In some cases, especially when running very large jobs with many parallel threads, some connections will
-          * break. In that case, we need to be able to obtain a new connection (and socket) to the service, which is
-          * why this is factored out.
-          */
-         resetBlobstore(username, password, provider, region);
+      if (length <= BlobUploaderMain.bufferThreshold) {
+         buffer = buffers.take((int) length);
+         try {
+            readFully(file, buffer, (int) length);
+         } catch (java.io.IOException e) {
+            e.printStackTrace();
+            buffers.give(buffer);
+            /**
+             * The file is no longer available on the local FS.
+             * In some application cases, you might also want to retry this instead of finishing the unit of work.
+             */
+            return;
+         }
+         payload = new HashingPayload(ByteSource.wrap(buffer).slice(0, length));
+      } else {
+         payload = new HashingPayload(Files.asByteSource(file));
       }
+      payload.getContentMetadata().setContentLength(length);
 
-      if (container.get() == null) {
-         container.set(UUID.randomUUID().toString());
-         Location location = getOnlyElement(blobStore.get().listAssignableLocations());
-         blobStore.get().createContainerInLocation(location, container.get());
+      try {
+         /**
+          * Uploading a file over a network is an inherently fragile operation. Over thousands of files, especially in
+          * highly parallel jobs that tax upload bandwidth, a small percent of uploads are guaranteed to fail.
+          * Each file gets a bounded number of attempts with a jittered backoff in between, and the circuit breaker
+          * holds every thread back while the provider is failing most requests.
+          */
+         for (int attempt = 1; ; attempt++) {
+            BlobUploaderMain.circuitBreaker.awaitClosed();
+            blob = blobStore.blobBuilder(objectName(file))
+                     .payload(payload)
+                     .build();
+            String failure;
+            long start = System.nanoTime();
+            try {
+               md5Remote = blobStore.putBlob(container, blob).toLowerCase();
+               // The md5 of the bytes that were actually sent, as calculated locally while streaming.
+               String md5Local = payload.md5();
+               if (md5Remote.equals(md5Local)) {
+                  BlobUploaderMain.metrics.recordRequest(System.nanoTime() - start, true);
+                  BlobUploaderMain.circuitBreaker.recordSuccess();
+                  completed(md5Local, md5Remote, length);
+                  return;
+               }
+               BlobUploaderMain.metrics.recordMd5Mismatch();
+               failure = "md5 mismatch " + md5Local + " vs " + md5Remote;
+            } catch (RuntimeException e) {
+               failure = e.toString();
+            }
+            BlobUploaderMain.metrics.recordRequest(System.nanoTime() - start, false);
+            BlobUploaderMain.circuitBreaker.recordFailure();
 
-         System.out.println("Created container " + container.get() +
-               " for thread " + Thread.currentThread() +
-               " in " + location.toString());
+            if (!BlobUploaderMain.retryPolicy.shouldRetry(attempt)) {
+               BlobUploaderMain.deadLetters.add(file, failure);
+               return;
+            }
+            System.out.println(failure + ", retrying " + file.getName() + " (attempt " + (attempt + 1) + ")");
+            BlobUploaderMain.metrics.recordRetry();
+            BlobUploaderMain.retryPolicy.backoff(attempt);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         payload.release();
+         if (buffer != null) {
+            buffers.give(buffer);
+         }
       }
+   }
 
-      // The md5 as returned by the service, and as calculated locally.
-      String md5Local;
-      String md5Remote;
-      Blob blob;
+   private void completed(String md5Local, String md5Remote, long length) {
+      if (BlobUploaderMain.journal != null) {
+         try {
+            BlobUploaderMain.journal.record(objectName(file), length, file.lastModified(), md5Local, container,
+                  md5Remote);
+         } catch (java.io.IOException e) {
+            // The upload itself went fine; at worst this file is sent again after a restart.
+            e.printStackTrace();
+         }
+      }
+      // Progress is reported periodically by UploadMetrics, not per file.
+      BlobUploaderMain.metrics.recordUploaded(1, length);
+   }
 
-      try {
-         md5Local = BaseEncoding.base16().encode(Files.hash(file, Hashing.md5()).asBytes()).toLowerCase();
-      } catch (java.io.IOException e) {
-         e.printStackTrace();
-         /**
-          * The file is no longer available on the local FS.
-          * In some application cases, you might also want to retry this instead of finishing the unit of work.
-          */
+   /**
+    * Creates the shared context and the container of the run. Called once, before any upload starts.
+    *
+    * @param maxConnections how many requests may be in flight at once; the connection pool is sized after it.
+    */
+   static synchronized void connect(String username, String password, String provider, String region,
+                                    int maxConnections) {
+      if (blobStore != null) {
          return;
       }
+      newContext(username, password, provider, region, maxConnections);
 
-      ByteSourcePayload bsp = new ByteSourcePayload(Files.asByteSource(file));
+      // All threads share the container of the run, so that a restarted run finds what was uploaded before.
+      container = BlobUploaderMain.containerName;
+      Location location = getOnlyElement(blobStore.listAssignableLocations());
+      blobStore.createContainerInLocation(location, container);
+      System.out.println("Using container " + container + " in " + location.toString());
+   }
 
-      /**
-       * Uploading a file over a network is an inherently fragile operation. Over thousands of files, especially in
-       * highly parallel jobs that tax upload bandwidth, a small percent of uploads are guaranteed to fail.
-       */
-      do {
-         System.out.println("Uploading " + file.getName() + " ; " + FileUtils.sizeOf(file));
-         blob = blobStore.get().blobBuilder(file.getName())
-                  .payload(bsp)
-                  .build();
-         md5Remote = blobStore.get().putBlob(container.get(), blob).toLowerCase();
-         if (md5Local.equals(md5Remote)) {
-            long total = BlobUploaderMain.bytesUploaded.addAndGet(FileUtils.sizeOf(file));
-            System.out.println("Uploaded MB: " + (int)total / FileUtils.ONE_MB + "MB ; " + (int)((float)BlobUploaderMain.bytesUploaded.get() / BlobUploaderMain.totalBytes) * 100 + "%");
-            bsp.release();
-            return;
-         } else {
-            System.out.printf("md5 mismatch %s vs %s, retrying %s", md5Local, md5Remote, file.getName());
+   /**
+    * Closes the shared context and its connections.
+    */
+   static synchronized void disconnect() {
+      if (context != null) {
+         Closeables2.closeQuietly(context);
+      }
+      context = null;
+      blobStore = null;
+      container = null;
+   }
+
+   /**
+    * @return the name of the object for a file: its path below BlobUploaderMain.directory, with a / between the
+    *         directories, so that files of the same name in different directories get objects of their own.
+    */
+   static String objectName(File file) {
+      File root = BlobUploaderMain.directory;
+      if (root == null) {
+         return file.getName();
+      }
+      Path base = root.toPath().toAbsolutePath().normalize();
+      Path relative = base.relativize(file.toPath().toAbsolutePath().normalize());
+      if (relative.toString().isEmpty()) {
+         // The directory given was the file itself.
+         return file.getName();
+      }
+      StringBuilder name = new StringBuilder();
+      for (Path element : relative) {
+         if (name.length() > 0) {
+            name.append('/');
          }
-      } while(true);
+         name.append(element);
+      }
+      return name.toString();
+   }
+
+   static BlobStore blobStore() {
+      return blobStore;
    }
 
-   private void resetBlobstore(String username, String password, String provider, String region) {
+   static String container() {
+      return container;
+   }
+
+   private static void readFully(File file, byte[] buffer, int length) throws java.io.IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         ByteStreams.readFully(in, buffer, 0, length);
+      } finally {
+         in.close();
+      }
+   }
+
+   private static void newContext(String username, String password, String provider, String region,
+                                  int maxConnections) {
       Properties overrides = new Properties();
       // Retry after 25 seconds of no response
       overrides.setProperty(Constants.PROPERTY_SO_TIMEOUT, "25000");
-      // Keep retrying indefinitely
-      overrides.setProperty(Constants.PROPERTY_MAX_RETRIES, String.valueOf(Integer.MAX_VALUE));
-      // Do not wait between retries
-      overrides.setProperty(Constants.PROPERTY_RETRY_DELAY_START , "0");
+      /**
+       * Only a couple of quick retries at the HTTP level, for broken connections. Anything beyond that is up to the
+       * RetryPolicy and CircuitBreaker, which back off and see what all the other threads see.
+       */
+      overrides.setProperty(Constants.PROPERTY_MAX_RETRIES, "2");
+      overrides.setProperty(Constants.PROPERTY_RETRY_DELAY_START, "200");
+      /**
+       * Every upload must be able to get a connection of its own, or threads would queue up on the pool instead of
+       * on the ConcurrencyController. Everything goes to the same host, so both limits are the same.
+       */
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(maxConnections));
+      overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(maxConnections));
 
+      /**
+       * The Apache HttpClient driver keeps idle connections in a pool and hands them out to any thread. The
+       * default java.net driver only keeps http.maxConnections (5 by default) idle sockets per host, so with more
+       * threads than that most requests would open a new connection, and a new TLS session with it.
+       */
       ContextBuilder builder = ContextBuilder.newBuilder(provider)
             .overrides(overrides)
+            .modules(ImmutableSet.<Module>of(new ApacheHCHttpCommandExecutorServiceModule()))
             .credentials(username, password);
-      blobStore.set(builder.buildView(RegionScopedBlobStoreContext.class).getBlobStore(region));
+      if (BlobUploaderMain.endpoint != null) {
+         builder.endpoint(BlobUploaderMain.endpoint);
+      }
+      if (region == null) {
+         // Providers without regions, e.g. "transient" for a local dry run, have a plain BlobStoreContext.
+         BlobStoreContext blobStoreContext = builder.buildView(BlobStoreContext.class);
+         context = blobStoreContext;
+         blobStore = blobStoreContext.getBlobStore();
+      } else {
+         RegionScopedBlobStoreContext regionContext = builder.buildView(RegionScopedBlobStoreContext.class);
+         context = regionContext;
+         blobStore = regionContext.getBlobStore(region);
+      }
    }
 }
@@ -19,34 +19,137 @@ package org.jclouds.examples.blobstore;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.CanReadFileFilter;
-import org.apache.commons.io.filefilter.TrueFileFilter;
-
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
 public class BlobUploaderMain {
-   private static int numThreads = 3;
-   public static long totalBytes = 0;
-   public static AtomicLong bytesUploaded = new AtomicLong(0);
+   private static int numThreads;
+   private static int maxThreads;
+   private static final long ADAPT_INTERVAL_SECONDS = 5;
+   private static long metricsIntervalSeconds;
+   private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+   // Pause everything for 30s when more than half of the last 50 requests failed.
+   private static final int BREAKER_WINDOW = 50;
+   private static final double BREAKER_FAILURE_RATIO = 0.5;
+   private static final long BREAKER_COOL_DOWN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+   private static int queueSize;
+   /**
+    * Files up to this many bytes are read into memory once and resent from there on retries.
+    */
+   public static long bufferThreshold;
+   /**
+    * When set, files up to batchMaxFileSize bytes are packed into archives of about batchSize bytes.
+    */
+   public static long batchSize;
+   public static long batchMaxFileSize;
+   public static Manifest manifest;
+   public static String endpoint;
+   public static ConcurrencyController concurrency;
+   public static UploadJournal journal;
+   public static String containerName;
+   /**
+    * The root of the walk; objects are named after the path of their file below it.
+    */
+   public static File directory;
+   public static RetryPolicy retryPolicy;
+   public static CircuitBreaker circuitBreaker;
+   public static DeadLetters deadLetters;
+   /**
+    * In sync mode, what the container held before the run.
+    */
+   public static RemoteIndex remoteIndex;
+   public static boolean syncMd5;
+   public static AtomicLong filesUnchanged;
+   /**
+    * Bytes discovered so far by the directory walk; it grows while the upload is already running.
+    */
+   public static AtomicLong totalBytes;
+   public static UploadMetrics metrics;
+
+   static {
+      reset();
+   }
+
+   /**
+    * Puts every option, counter and file of a run back to its default. The benchmarks call main several times
+    * in one JVM, and each run must not see the totals, metrics, journal or options of the one before.
+    */
+   static void reset() {
+      numThreads = 3;
+      maxThreads = 64;
+      metricsIntervalSeconds = 10;
+      queueSize = 1000;
+      bufferThreshold = 1024 * 1024;
+      batchSize = 0;
+      batchMaxFileSize = 64 * 1024;
+      manifest = null;
+      endpoint = null;
+      concurrency = null;
+      journal = null;
+      containerName = null;
+      directory = null;
+      retryPolicy = null;
+      circuitBreaker = null;
+      deadLetters = null;
+      remoteIndex = null;
+      syncMd5 = false;
+      filesUnchanged = new AtomicLong(0);
+      totalBytes = new AtomicLong(0);
+      metrics = new UploadMetrics();
+   }
 
    public static void main(String[] args) throws IOException {
+      reset();
 
       OptionParser parser = new OptionParser();
       parser.accepts("directory").withRequiredArg().required().ofType(String.class);
       parser.accepts("provider").withRequiredArg().required().ofType(String.class);
       parser.accepts("username").withRequiredArg().required().ofType(String.class);
       parser.accepts("password").withRequiredArg().required().ofType(String.class);
-      parser.accepts("region").withRequiredArg().required().ofType(String.class);
-      parser.accepts("threads").withRequiredArg().ofType(Integer.TYPE).describedAs("number of parallel threads");
+      parser.accepts("region").withRequiredArg().ofType(String.class);
+      parser.accepts("container").withRequiredArg().ofType(String.class)
+            .describedAs("container to upload to, by default the one from the journal or a new random one");
+      parser.accepts("journal").withRequiredArg().ofType(String.class)
+            .describedAs("file that records completed uploads, so an interrupted run can be resumed");
+      parser.accepts("max-attempts").withRequiredArg().ofType(Integer.class)
+            .describedAs("attempts per file before it goes to the dead letters");
+      parser.accepts("retry-delay").withRequiredArg().ofType(Long.class)
+            .describedAs("initial backoff between attempts in ms, doubled on every attempt");
+      parser.accepts("dead-letters").withRequiredArg().ofType(String.class)
+            .describedAs("file that lists the files that could not be uploaded");
+      parser.accepts("sync", "skip files that are already in the container with the same size and a later date");
+      parser.accepts("sync-md5", "like --sync, but compare the md5 of local files with the ETags");
+      parser.accepts("delete-orphans", "with --sync, delete objects that have no local file any more");
+      parser.accepts("metrics-interval").withRequiredArg().ofType(Long.class)
+            .describedAs("seconds between two progress lines");
+      parser.accepts("endpoint").withRequiredArg().ofType(String.class)
+            .describedAs("endpoint to use instead of the provider default");
+      parser.accepts("threads").withRequiredArg().ofType(Integer.class).describedAs("number of parallel threads");
+      parser.accepts("adaptive", "grow and shrink the number of parallel uploads with throughput, errors and latency");
+      parser.accepts("virtual-threads", "run every upload on a thread of its own, virtual on Java 21 or later; " +
+            "--threads then only limits the number of uploads in flight");
+      parser.accepts("max-threads").withRequiredArg().ofType(Integer.class)
+            .describedAs("upper bound of parallel uploads in adaptive mode");
+      parser.accepts("queue-size").withRequiredArg().ofType(Integer.class)
+            .describedAs("number of files the directory walk may run ahead of the uploads");
+      parser.accepts("buffer-threshold").withRequiredArg().ofType(Long.class)
+            .describedAs("files up to this many bytes are buffered in memory for retries");
+      parser.accepts("batch-size").withRequiredArg().ofType(Long.class)
+            .describedAs("pack small files into archives of about this many bytes");
+      parser.accepts("batch-max-file-size").withRequiredArg().ofType(Long.class)
+            .describedAs("largest file that is packed into an archive");
+      parser.accepts("manifest").withRequiredArg().ofType(String.class)
+            .describedAs("file that records where each batched file was stored");
       OptionSet options = null;
 
       try {
@@ -58,33 +161,158 @@ public class BlobUploaderMain {
       }
 
       if (options.has("threads")) {
-         numThreads = Integer.valueOf((String)options.valueOf("numThreads"));
+         numThreads = (Integer) options.valueOf("threads");
+      }
+
+      if (options.has("endpoint")) {
+         endpoint = (String) options.valueOf("endpoint");
+      }
+
+      if (options.has("metrics-interval")) {
+         metricsIntervalSeconds = (Long) options.valueOf("metrics-interval");
+      }
+
+      if (options.has("queue-size")) {
+         queueSize = (Integer) options.valueOf("queue-size");
+      }
+
+      if (options.has("buffer-threshold")) {
+         bufferThreshold = (Long) options.valueOf("buffer-threshold");
+         if (bufferThreshold > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("buffer-threshold must be less than 2GB");
+         }
       }
 
-      File rootDir = new File((String) options.valueOf("directory"));
-      Collection<File> files = FileUtils.listFiles(rootDir, CanReadFileFilter.CAN_READ, TrueFileFilter.TRUE);
-      totalBytes = FileUtils.sizeOfDirectory(rootDir);
+      if (options.has("batch-size")) {
+         batchSize = (Long) options.valueOf("batch-size");
+         if (batchSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("batch-size must be less than 2GB");
+         }
+      }
 
-      System.out.println("Uploading " + rootDir.getName() + " " + totalBytes / FileUtils.ONE_MB + "MB");
+      if (options.has("batch-max-file-size")) {
+         batchMaxFileSize = (Long) options.valueOf("batch-max-file-size");
+      }
 
-      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      if (options.has("manifest")) {
+         manifest = new Manifest(new File((String) options.valueOf("manifest")));
+      }
+
+      if (options.has("journal")) {
+         // Entries only count for the same provider, endpoint and region.
+         String store = options.valueOf("provider") + " " + endpoint + " " + options.valueOf("region");
+         journal = new UploadJournal(new File((String) options.valueOf("journal")), store);
+         System.out.println("Resuming after " + journal.getCompletedCount() + " completed files");
+      }
+
+      if (options.has("container")) {
+         containerName = (String) options.valueOf("container");
+      } else if (journal != null && journal.getLastContainer() != null) {
+         containerName = journal.getLastContainer();
+      } else {
+         containerName = UUID.randomUUID().toString();
+      }
+
+      retryPolicy = new RetryPolicy(
+            options.has("max-attempts") ? (Integer) options.valueOf("max-attempts") : 5,
+            options.has("retry-delay") ? (Long) options.valueOf("retry-delay") : 1000,
+            MAX_RETRY_DELAY_MILLIS);
+      circuitBreaker = new CircuitBreaker(BREAKER_WINDOW, BREAKER_FAILURE_RATIO, BREAKER_COOL_DOWN_MILLIS);
+      deadLetters = new DeadLetters(options.has("dead-letters") ?
+            new File((String) options.valueOf("dead-letters")) : null);
+
+      String username = (String) options.valueOf("username");
+      String password = (String) options.valueOf("password");
+      String provider = (String) options.valueOf("provider");
+      String region = (String) options.valueOf("region");
+
+      boolean adaptive = options.has("adaptive");
+      if (options.has("max-threads")) {
+         maxThreads = (Integer) options.valueOf("max-threads");
+      }
+      int workers = adaptive ? Math.max(maxThreads, numThreads) : numThreads;
+
+      // The one context of the run, with a connection for every upload that may be in flight.
+      BlobUploader.connect(username, password, provider, region, workers);
+
+      syncMd5 = options.has("sync-md5");
+      boolean deleteOrphans = options.has("delete-orphans");
+      if (options.has("sync") || syncMd5 || deleteOrphans) {
+         // A single listing of the container, before any upload starts.
+         remoteIndex = RemoteIndex.load(BlobUploader.blobStore(), containerName);
+         System.out.println("Container " + containerName + " holds " + remoteIndex.size() + " objects");
+      }
+
+      directory = new File((String) options.valueOf("directory"));
+      System.out.println("Uploading " + directory.getName());
+
+      /**
+       * The directory is walked lazily on this thread while the workers drain the queue, so uploads start with the
+       * first file found and heap use stays flat no matter how many files the tree holds.
+       */
+      BlockingQueue<File> queue = new ArrayBlockingQueue<File>(queueSize);
+
+      /**
+       * There is one worker thread per upload that may ever run (with --virtual-threads, one thread per upload that
+       * is running), but the controller decides how many of them actually upload at a time. In adaptive mode the
+       * limit starts at --threads and moves between 1 and --max-threads.
+       */
+      concurrency = new ConcurrencyController(numThreads, adaptive ? 1 : numThreads, workers);
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+      if (adaptive) {
+         scheduler.scheduleAtFixedRate(concurrency, ADAPT_INTERVAL_SECONDS, ADAPT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+      }
+      metrics.register();
+      scheduler.scheduleAtFixedRate(metrics, metricsIntervalSeconds, metricsIntervalSeconds, TimeUnit.SECONDS);
 
-      for (File f : files) {
-         BlobUploader b =
-         new BlobUploader(
-               (String) options.valueOf("username"),
-               (String) options.valueOf("password"),
-               (String) options.valueOf("provider"),
-               (String) options.valueOf("region"),
-               f);
-         executor.execute(b);
+      ExecutorService executor;
+      int consumers;
+      if (options.has("virtual-threads")) {
+         // A single thread hands the files out, the permits of the controller bound the uploads in flight.
+         executor = Executors.newSingleThreadExecutor();
+         executor.execute(new UploadDispatcher(queue, region, UploadDispatcher.newVirtualThreadExecutor()));
+         consumers = 1;
+      } else {
+         executor = Executors.newFixedThreadPool(workers);
+         for (int i = 0; i < workers; i++) {
+            executor.execute(new UploadWorker(queue, region));
+         }
+         consumers = workers;
       }
       executor.shutdown();
 
       try {
+         DirectoryWalker walker = new DirectoryWalker(queue);
+         walker.walk(directory, consumers);
          executor.awaitTermination(1, TimeUnit.DAYS);
+         if (remoteIndex != null) {
+            System.out.println(filesUnchanged.get() + " files were unchanged");
+            if (deleteOrphans) {
+               try {
+                  System.out.println(remoteIndex.deleteOrphans(BlobUploader.blobStore(), containerName, walker) +
+                        " orphans deleted");
+               } catch (IllegalStateException e) {
+                  System.out.println(e.getMessage());
+               }
+            }
+         }
       } catch (InterruptedException e) {
          e.printStackTrace();
+      } finally {
+         scheduler.shutdownNow();
+         BlobUploader.disconnect();
+         // One last line, for the tail of the run.
+         metrics.run();
+         if (manifest != null) {
+            manifest.close();
+         }
+         if (journal != null) {
+            journal.close();
+         }
+         deadLetters.close();
+         if (deadLetters.getCount() > 0) {
+            System.out.println(deadLetters.getCount() + " files could not be uploaded");
+         }
       }
    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Arrays to read small files into, pooled by size class: a power of two of at least {@link #MIN_SIZE} bytes, so
+ * that a file gets an array less than twice its size however large the largest buffered file may be.
+ *
+ * Arrays that are given back are kept for the next files of their class as long as the pool holds less than its
+ * limit in all; the others are left to the garbage collector. Arrays in use are not counted, there is one per
+ * upload in flight and each is about the size of its file.
+ */
+public class BufferPool {
+   static final int MIN_SIZE = 4096;
+   // classes up to 2^30, larger arrays are allocated to size and never pooled
+   private static final int MAX_CLASS = 30;
+
+   private final Queue<byte[]>[] free;
+   private final long maxPooledBytes;
+   private final AtomicLong pooledBytes = new AtomicLong();
+
+   @SuppressWarnings("unchecked")
+   public BufferPool(long maxPooledBytes) {
+      this.maxPooledBytes = maxPooledBytes;
+      free = new Queue[MAX_CLASS + 1];
+      for (int i = 0; i < free.length; i++) {
+         free[i] = new ConcurrentLinkedQueue<byte[]>();
+      }
+   }
+
+   /**
+    * @return an array of at least length bytes.
+    */
+   public byte[] take(int length) {
+      int sizeClass = sizeClass(length);
+      if (sizeClass > MAX_CLASS) {
+         return new byte[length];
+      }
+      byte[] buffer = free[sizeClass].poll();
+      if (buffer == null) {
+         return new byte[1 << sizeClass];
+      }
+      pooledBytes.addAndGet(-buffer.length);
+      return buffer;
+   }
+
+   /**
+    * Gives back an array from {@link #take(int)}.
+    */
+   public void give(byte[] buffer) {
+      int sizeClass = sizeClass(buffer.length);
+      if (sizeClass > MAX_CLASS || buffer.length != 1 << sizeClass) {
+         return;
+      }
+      if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+         pooledBytes.addAndGet(-buffer.length);
+         return;
+      }
+      free[sizeClass].offer(buffer);
+   }
+
+   /**
+    * @return the bytes of the arrays in the pool, waiting to be taken.
+    */
+   public long getPooledBytes() {
+      return pooledBytes.get();
+   }
+
+   private static int sizeClass(int length) {
+      return 32 - Integer.numberOfLeadingZeros(Math.max(length, MIN_SIZE) - 1);
+   }
+}
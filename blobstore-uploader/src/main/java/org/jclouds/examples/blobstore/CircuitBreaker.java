@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pauses all workers when the provider is in trouble, instead of letting every thread keep hammering it.
+ *
+ * The outcomes of the last requests are kept in a ring. When the ring is full and more than the failure ratio of
+ * them failed, the breaker opens: {@link #awaitClosed()} blocks every thread until the cool down is over. Then
+ * the breaker closes with an empty ring, so it takes a full window of fresh failures to open it again. Each time
+ * it opens again without a success in between, the cool down doubles, up to ten times the initial one.
+ *
+ * State is guarded by a {@link ReentrantLock} rather than a monitor: a virtual thread that waits in
+ * {@link #awaitClosed()} then unmounts from its carrier instead of pinning it for the whole cool down.
+ */
+public class CircuitBreaker {
+   private final boolean[] outcomes;
+   private final double failureRatio;
+   private final long coolDownMillis;
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition reopened = lock.newCondition();
+
+   private int next;
+   private int recorded;
+   private int failures;
+   private long openUntil;
+   private long currentCoolDown;
+   private int trips;
+
+   public CircuitBreaker(int window, double failureRatio, long coolDownMillis) {
+      this.outcomes = new boolean[window];
+      this.failureRatio = failureRatio;
+      this.coolDownMillis = coolDownMillis;
+      this.currentCoolDown = coolDownMillis;
+   }
+
+   /**
+    * Blocks while the breaker is open.
+    */
+   public void awaitClosed() throws InterruptedException {
+      lock.lock();
+      try {
+         long now;
+         while ((now = System.currentTimeMillis()) < openUntil) {
+            reopened.await(openUntil - now, TimeUnit.MILLISECONDS);
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public void recordSuccess() {
+      lock.lock();
+      try {
+         record(true);
+         currentCoolDown = coolDownMillis;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public void recordFailure() {
+      lock.lock();
+      try {
+         record(false);
+         if (recorded == outcomes.length && failures > failureRatio * outcomes.length) {
+            open();
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return how many times the breaker opened.
+    */
+   public int getTrips() {
+      lock.lock();
+      try {
+         return trips;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public boolean isOpen() {
+      lock.lock();
+      try {
+         return System.currentTimeMillis() < openUntil;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   private void record(boolean success) {
+      if (recorded == outcomes.length) {
+         if (!outcomes[next]) {
+            failures--;
+         }
+      } else {
+         recorded++;
+      }
+      outcomes[next] = success;
+      if (!success) {
+         failures++;
+      }
+      next = (next + 1) % outcomes.length;
+   }
+
+   private void open() {
+      trips++;
+      openUntil = System.currentTimeMillis() + currentCoolDown;
+      System.out.printf("Circuit breaker open: %d of the last %d requests failed, pausing all uploads for %ds%n",
+            failures, outcomes.length, TimeUnit.MILLISECONDS.toSeconds(currentCoolDown));
+      currentCoolDown = Math.min(currentCoolDown * 2, coolDownMillis * 10);
+      recorded = 0;
+      failures = 0;
+      next = 0;
+      // Waiting threads wake up to wait for the new end of the cool down.
+      reopened.signalAll();
+   }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of uploads in flight, and optionally adapts that limit to what the provider can take.
+ *
+ * Every upload holds a permit while it runs. When {@link #run()} is scheduled periodically, the limit follows an
+ * AIMD scheme: it grows by one each interval while throughput keeps improving and there is no sign of congestion,
+ * and it is cut to 3/4 as soon as requests fail or their latency climbs well above the best latency seen so far.
+ * Without the periodic run, the limit stays where it started.
+ */
+public class ConcurrencyController implements Runnable {
+   /**
+    * Latency this many times above the best interval seen so far is taken as a sign of congestion.
+    */
+   private static final double LATENCY_TOLERANCE = 2.0;
+   private static final double DECREASE_FACTOR = 0.75;
+
+   /**
+    * A semaphore whose number of permits can also be lowered while permits are held.
+    */
+   private static class AdjustableSemaphore extends Semaphore {
+      AdjustableSemaphore(int permits) {
+         super(permits, true);
+      }
+
+      @Override
+      protected void reducePermits(int reduction) {
+         super.reducePermits(reduction);
+      }
+   }
+
+   private final AdjustableSemaphore permits;
+   private final int minLimit;
+   private final int maxLimit;
+   private volatile int limit;
+
+   // Only touched by run(), which is never called concurrently.
+   private long lastRequests;
+   private long lastFailures;
+   private long lastLatencyNanos;
+   private long lastBytes;
+   private long lastSample = System.nanoTime();
+   private double bestLatency = Double.MAX_VALUE;
+   private double previousThroughput;
+   private boolean increasedLastTime;
+   private volatile double throughput;
+
+   public ConcurrencyController(int initialLimit, int minLimit, int maxLimit) {
+      if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+         throw new IllegalArgumentException("expected 1 <= min <= initial <= max, got " +
+               minLimit + ", " + initialLimit + ", " + maxLimit);
+      }
+      this.permits = new AdjustableSemaphore(initialLimit);
+      this.minLimit = minLimit;
+      this.maxLimit = maxLimit;
+      this.limit = initialLimit;
+   }
+
+   public void acquire() throws InterruptedException {
+      permits.acquire();
+   }
+
+   public void release() {
+      permits.release();
+   }
+
+   /**
+    * Takes one sample of throughput, latency and failures from the {@link UploadMetrics} since the last call, and
+    * adjusts the limit.
+    */
+   @Override
+   public void run() {
+      long now = System.nanoTime();
+      UploadMetrics metrics = BlobUploaderMain.metrics;
+      long bytes = metrics.getBytesUploaded();
+      long requestCount = metrics.getRequests();
+      long failureCount = metrics.getFailedRequests();
+      long latency = metrics.getLatencyNanos();
+
+      double seconds = (now - lastSample) / (double) TimeUnit.SECONDS.toNanos(1);
+      long intervalRequests = requestCount - lastRequests;
+      long intervalFailures = failureCount - lastFailures;
+      throughput = seconds > 0 ? (bytes - lastBytes) / seconds : 0;
+
+      lastSample = now;
+      lastBytes = bytes;
+      lastRequests = requestCount;
+      lastFailures = failureCount;
+      long intervalLatency = latency - lastLatencyNanos;
+      lastLatencyNanos = latency;
+
+      if (intervalRequests == 0) {
+         // Nothing finished, so nothing to learn from; this is typical right at the start with large files.
+         return;
+      }
+
+      double averageLatency = intervalLatency / (double) intervalRequests;
+      bestLatency = Math.min(bestLatency, averageLatency);
+      boolean congested = intervalFailures > 0 || averageLatency > bestLatency * LATENCY_TOLERANCE;
+
+      if (congested) {
+         setLimit(Math.max(minLimit, (int) (limit * DECREASE_FACTOR)));
+         increasedLastTime = false;
+      } else if (increasedLastTime && throughput <= previousThroughput) {
+         // The last step up did not buy anything, so the link or the provider is saturated: hold.
+         increasedLastTime = false;
+      } else if (limit < maxLimit) {
+         setLimit(limit + 1);
+         increasedLastTime = true;
+      }
+      previousThroughput = throughput;
+
+      System.out.printf("Concurrency %d ; %s ; %d requests, %d failed, %.0fms average%n",
+            limit, formatThroughput(throughput), intervalRequests, intervalFailures,
+            averageLatency / TimeUnit.MILLISECONDS.toNanos(1));
+   }
+
+   private synchronized void setLimit(int newLimit) {
+      int delta = newLimit - limit;
+      if (delta > 0) {
+         permits.release(delta);
+      } else if (delta < 0) {
+         // Uploads in flight keep their permits; the limit takes effect as they finish.
+         permits.reducePermits(-delta);
+      }
+      limit = newLimit;
+   }
+
+   /**
+    * @return the number of uploads allowed in flight right now.
+    */
+   public int getLimit() {
+      return limit;
+   }
+
+   /**
+    * @return the bytes per second uploaded during the last sampling interval.
+    */
+   public double getThroughput() {
+      return throughput;
+   }
+
+   static String formatThroughput(double bytesPerSecond) {
+      if (bytesPerSecond < 1024) {
+         return String.format("%.0f bytes/s", bytesPerSecond);
+      } else if (bytesPerSecond < 1024 * 1024) {
+         return String.format("%.1f kbytes/s", bytesPerSecond / 1024);
+      } else {
+         return String.format("%.1f Mbytes/s", bytesPerSecond / (1024 * 1024));
+      }
+   }
+}
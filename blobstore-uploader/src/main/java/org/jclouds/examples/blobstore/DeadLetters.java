@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Files that used up their retry budget. They are counted, and when a file is given, written to it one per line
+ * as path and reason, tab separated, so they can be looked at or fed to another run.
+ */
+public class DeadLetters implements Closeable {
+   private final Writer writer;
+   private int count;
+
+   /**
+    * @param file where to write the failed files, or null to only count them.
+    */
+   public DeadLetters(File file) throws IOException {
+      writer = file == null ? null :
+            new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+   }
+
+   public synchronized void add(File file, String reason) {
+      count++;
+      System.out.println("Giving up on " + file + ": " + reason);
+      if (writer != null) {
+         try {
+            writer.write(file.getPath() + "\t" + reason.replace('\n', ' ') + "\n");
+            writer.flush();
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   public synchronized int getCount() {
+      return count;
+   }
+
+   @Override
+   public synchronized void close() throws IOException {
+      if (writer != null) {
+         writer.close();
+      }
+   }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Walks a directory tree lazily and feeds every readable regular file into a bounded queue.
+ *
+ * Files are handed over one at a time as the tree is visited, so memory use depends on the capacity of the queue
+ * and not on the number of files in the tree. When the queue is full, the walk blocks until a worker takes a file,
+ * which gives us backpressure for free.
+ *
+ * A file or directory that cannot be read is skipped, but the walk is then no longer {@link #isComplete()
+ * complete}: the files it did not see may still exist, so their objects must not be taken for orphans.
+ */
+public class DirectoryWalker {
+   /**
+    * Marker put on the queue once per worker when the walk is over. Compared by identity, never uploaded.
+    */
+   public static final File END_OF_FILES = new File("");
+
+   private final BlockingQueue<File> queue;
+   private volatile boolean complete;
+
+   public DirectoryWalker(BlockingQueue<File> queue) {
+      this.queue = queue;
+   }
+
+   /**
+    * Visits every file below root, then puts one {@link #END_OF_FILES} marker per worker on the queue.
+    */
+   public void walk(File root, int workers) throws IOException, InterruptedException {
+      complete = false;
+      final boolean[] failed = new boolean[1];
+      try {
+         Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+               if (attrs.isRegularFile() && !Files.isReadable(file)) {
+                  return visitFileFailed(file, new IOException("not readable"));
+               }
+               if (attrs.isRegularFile()) {
+                  UploadJournal journal = BlobUploaderMain.journal;
+                  if (journal != null && journal.isCompleted(BlobUploader.objectName(file.toFile()), attrs.size(),
+                        attrs.lastModifiedTime().toMillis(), BlobUploaderMain.containerName)) {
+                     // Uploaded by an earlier run and not changed since, so its object is no orphan.
+                     RemoteIndex index = BlobUploaderMain.remoteIndex;
+                     if (index != null) {
+                        index.markSeen(BlobUploader.objectName(file.toFile()));
+                     }
+                     return FileVisitResult.CONTINUE;
+                  }
+                  BlobUploaderMain.totalBytes.addAndGet(attrs.size());
+                  try {
+                     queue.put(file.toFile());
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     failed[0] = true;
+                     return FileVisitResult.TERMINATE;
+                  }
+               }
+               return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+               // An unreadable file or directory should not stop the whole job.
+               System.out.println("Skipping " + file + ": " + e.getMessage());
+               failed[0] = true;
+               return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+               if (e != null) {
+                  // The directory could not be listed to the end.
+                  return visitFileFailed(dir, e);
+               }
+               return FileVisitResult.CONTINUE;
+            }
+         });
+         complete = !failed[0];
+      } finally {
+         for (int i = 0; i < workers; i++) {
+            queue.put(END_OF_FILES);
+         }
+      }
+   }
+
+   /**
+    * @return true if the last walk visited every file below its root, without any error.
+    */
+   public boolean isComplete() {
+      return complete;
+   }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+/**
+ * A set of 64 bit fingerprints in a single open addressing long[], 8 to 16 bytes per entry.
+ *
+ * Tens of millions of file names as Strings in a HashSet would take gigabytes of heap; their fingerprints take a
+ * few hundred megabytes at most. With 64 bits the chance of a false positive stays negligible at that scale.
+ *
+ * Not thread safe for writes; fill it first, then it can be read from any thread.
+ */
+public class FingerprintSet {
+   private static final long EMPTY = 0;
+
+   private long[] slots;
+   private int size;
+
+   public FingerprintSet(int expected) {
+      int capacity = 16;
+      while (capacity < expected * 2L && capacity < (1 << 30)) {
+         capacity <<= 1;
+      }
+      slots = new long[capacity];
+   }
+
+   public boolean add(long fingerprint) {
+      if (fingerprint == EMPTY) {
+         fingerprint = 1;
+      }
+      if (size >= slots.length / 4 * 3) {
+         grow();
+      }
+      if (insert(slots, fingerprint)) {
+         size++;
+         return true;
+      }
+      return false;
+   }
+
+   public boolean contains(long fingerprint) {
+      if (fingerprint == EMPTY) {
+         fingerprint = 1;
+      }
+      int mask = slots.length - 1;
+      for (int i = index(fingerprint, mask); ; i = (i + 1) & mask) {
+         long slot = slots[i];
+         if (slot == fingerprint) {
+            return true;
+         }
+         if (slot == EMPTY) {
+            return false;
+         }
+      }
+   }
+
+   public int size() {
+      return size;
+   }
+
+   private static boolean insert(long[] table, long fingerprint) {
+      int mask = table.length - 1;
+      for (int i = index(fingerprint, mask); ; i = (i + 1) & mask) {
+         long slot = table[i];
+         if (slot == fingerprint) {
+            return false;
+         }
+         if (slot == EMPTY) {
+            table[i] = fingerprint;
+            return true;
+         }
+      }
+   }
+
+   private static int index(long fingerprint, int mask) {
+      // The fingerprints are already well mixed hashes, so the low bits are good enough.
+      return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+   }
+
+   private void grow() {
+      if (slots.length >= (1 << 30)) {
+         throw new IllegalStateException("too many entries: " + size);
+      }
+      long[] bigger = new long[slots.length * 2];
+      for (long slot : slots) {
+         if (slot != EMPTY) {
+            insert(bigger, slot);
+         }
+      }
+      slots = bigger;
+   }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jclouds.io.payloads.ByteSourcePayload;
+
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+
+/**
+ * A payload that computes the MD5 of its content while jclouds streams it to the provider, so the file does not
+ * have to be read a second time just to verify the ETag.
+ *
+ * Every call to {@link #openStream()} starts a new digest; {@link #md5()} returns the digest of the last stream,
+ * i.e. of the attempt that was just sent.
+ */
+public class HashingPayload extends ByteSourcePayload {
+   private volatile HashingInputStream lastStream;
+
+   public HashingPayload(ByteSource content) {
+      super(content);
+   }
+
+   @Override
+   public InputStream openStream() throws IOException {
+      HashingInputStream stream = new HashingInputStream(Hashing.md5(), super.openStream());
+      lastStream = stream;
+      return stream;
+   }
+
+   /**
+    * @return the lower case hex MD5 of the bytes read from the last opened stream, or null if it was never opened.
+    */
+   public String md5() {
+      HashingInputStream stream = lastStream;
+      if (stream == null) {
+         return null;
+      }
+      return BaseEncoding.base16().lowerCase().encode(stream.hash().asBytes());
+   }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the style of HdrHistogram: buckets for powers of two, each split in 32 linear
+ * sub-buckets, so any value is recorded with about 3% precision from 1 microsecond up to days, in 10KB per stripe.
+ *
+ * Recording is a single atomic increment. To keep threads from contending on the same counters, there is a fixed
+ * set of stripes, four per processor, and a thread records into the one its hashed id picks; {@link #snapshot()}
+ * adds them up. The memory stays the same however many threads record, which matters with a new virtual thread
+ * per upload.
+ */
+public class LatencyHistogram {
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int BUCKETS = 40;
+   private static final int SLOTS = BUCKETS * SUB_BUCKETS;
+   private static final int STRIPES_PER_PROCESSOR = 4;
+   private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+   private final AtomicLongArray[] stripes;
+   private final int stripeBits;
+
+   public LatencyHistogram() {
+      int wanted = Runtime.getRuntime().availableProcessors() * STRIPES_PER_PROCESSOR;
+      stripeBits = 32 - Integer.numberOfLeadingZeros(wanted - 1);
+      stripes = new AtomicLongArray[1 << stripeBits];
+      for (int i = 0; i < stripes.length; i++) {
+         stripes[i] = new AtomicLongArray(SLOTS);
+      }
+   }
+
+   public void record(long nanos) {
+      stripes[stripe(Thread.currentThread().getId())].incrementAndGet(index(TimeUnit.NANOSECONDS.toMicros(nanos)));
+   }
+
+   /**
+    * @return the counts of all stripes added up; later records do not change it.
+    */
+   public Snapshot snapshot() {
+      long[] counts = new long[SLOTS];
+      for (AtomicLongArray stripe : stripes) {
+         for (int i = 0; i < SLOTS; i++) {
+            counts[i] += stripe.get(i);
+         }
+      }
+      return new Snapshot(counts);
+   }
+
+   /**
+    * Fibonacci hashing of the thread id: the ids of the threads running at once are spread over the stripes
+    * whatever their pattern, e.g. only even ids.
+    */
+   int stripe(long threadId) {
+      return stripeBits == 0 ? 0 : (int) ((threadId * GOLDEN_RATIO) >>> (64 - stripeBits));
+   }
+
+   /**
+    * A point in time copy of the histogram. Subtract an earlier snapshot to get the latencies of an interval.
+    */
+   public static class Snapshot {
+      private final long[] counts;
+      private final long total;
+
+      Snapshot(long[] counts) {
+         this.counts = counts;
+         long sum = 0;
+         for (long count : counts) {
+            sum += count;
+         }
+         this.total = sum;
+      }
+
+      public Snapshot minus(Snapshot earlier) {
+         long[] difference = new long[SLOTS];
+         for (int i = 0; i < SLOTS; i++) {
+            difference[i] = counts[i] - earlier.counts[i];
+         }
+         return new Snapshot(difference);
+      }
+
+      public long getCount() {
+         return total;
+      }
+
+      /**
+       * @param percentile between 0 and 100
+       * @return the latency in microseconds below which that percentage of the requests fall, or 0 if empty.
+       */
+      public long getPercentile(double percentile) {
+         if (total == 0) {
+            return 0;
+         }
+         long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+         long seen = 0;
+         for (int i = 0; i < SLOTS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+               return highestEquivalentValue(i);
+            }
+         }
+         return highestEquivalentValue(SLOTS - 1);
+      }
+
+      public long getMax() {
+         for (int i = SLOTS - 1; i >= 0; i--) {
+            if (counts[i] != 0) {
+               return highestEquivalentValue(i);
+            }
+         }
+         return 0;
+      }
+   }
+
+   static int index(long micros) {
+      if (micros < SUB_BUCKETS) {
+         return (int) Math.max(0, micros);
+      }
+      int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+      int bucket = highestBit - SUB_BUCKET_BITS + 1;
+      if (bucket >= BUCKETS) {
+         return SLOTS - 1;
+      }
+      int subBucket = (int) (micros >>> (bucket - 1)) - SUB_BUCKETS;
+      return bucket * SUB_BUCKETS + subBucket;
+   }
+
+   static long highestEquivalentValue(int index) {
+      int bucket = index / SUB_BUCKETS;
+      int subBucket = index % SUB_BUCKETS;
+      if (bucket == 0) {
+         return subBucket;
+      }
+      long lowest = (long) (SUB_BUCKETS + subBucket) << (bucket - 1);
+      return lowest + (1L << (bucket - 1)) - 1;
+   }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Records where each batched file ended up, one tab separated line per file:
+ *
+ * local path, container, object name, offset of the file in the object, length
+ *
+ * When a batch was extracted by the provider every file is its own object and the offset is 0. When a batch was
+ * stored as a tar object, the offset points at the file content inside the archive.
+ */
+public class Manifest implements Closeable {
+   private final Writer writer;
+
+   public Manifest(File file) throws IOException {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+   }
+
+   public synchronized void record(File file, String container, String object, long offset, long length)
+         throws IOException {
+      writer.write(file.getPath() + "\t" + container + "\t" + object + "\t" + offset + "\t" + length + "\n");
+   }
+
+   @Override
+   public synchronized void close() throws IOException {
+      writer.close();
+   }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import static com.google.common.base.Preconditions.checkState;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.afterMarker;
+import static org.jclouds.blobstore.options.ListContainerOptions.Builder.recursive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * What is already in the container, listed once at the start of a sync, and kept in primitive arrays: a 64 bit
+ * fingerprint of the object name, its size, last modified time and md5 (40 bytes per slot) instead of a map of
+ * Strings and StorageMetadata objects.
+ *
+ * Lookups are read only and can be done from any thread. Each lookup also marks the object as seen, so that after
+ * the run the objects that were never seen are the ones without a local file.
+ */
+public class RemoteIndex {
+   private static final long EMPTY = 0;
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+   private static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+
+   private long[] keys;
+   private long[] sizes;
+   private long[] lastModified;
+   private long[] md5High;
+   private long[] md5Low;
+   private AtomicLongArray seen;
+   private int size;
+
+   private RemoteIndex() {
+      allocate(1024);
+   }
+
+   /**
+    * Lists the whole container, page by page, into a new index.
+    */
+   public static RemoteIndex load(BlobStore blobStore, String container) {
+      RemoteIndex index = new RemoteIndex();
+      String marker = null;
+      do {
+         PageSet<? extends StorageMetadata> page = blobStore.list(container,
+               marker == null ? recursive() : afterMarker(marker).recursive());
+         for (StorageMetadata metadata : page) {
+            Long objectSize = metadata.getSize();
+            index.put(metadata.getName(),
+                  objectSize == null ? -1 : objectSize,
+                  metadata.getLastModified() == null ? 0 : metadata.getLastModified().getTime(),
+                  metadata.getETag());
+         }
+         marker = page.getNextMarker();
+      } while (marker != null);
+      index.seen = new AtomicLongArray((index.keys.length + 63) / 64);
+      return index;
+   }
+
+   private void put(String name, long objectSize, long modified, String eTag) {
+      if (size >= keys.length / 4 * 3) {
+         grow();
+      }
+      long key = fingerprint(name);
+      int slot = slot(keys, key);
+      if (keys[slot] == EMPTY) {
+         size++;
+      }
+      keys[slot] = key;
+      sizes[slot] = objectSize;
+      lastModified[slot] = modified;
+      // Multipart uploads have composite ETags that are no md5; those only ever match on size and time.
+      if (eTag != null) {
+         eTag = eTag.replace("\"", "").toLowerCase();
+      }
+      if (eTag != null && eTag.length() == 32 && eTag.matches("[0-9a-f]+")) {
+         byte[] md5 = HashCode.fromString(eTag).asBytes();
+         md5High[slot] = toLong(md5, 0);
+         md5Low[slot] = toLong(md5, 8);
+      } else {
+         md5High[slot] = 0;
+         md5Low[slot] = 0;
+      }
+   }
+
+   /**
+    * Checks if the object for a local file is already up to date, and marks it as seen.
+    *
+    * @param compareMd5 if true, the local file is hashed and compared with the ETag; otherwise the object is
+    *                   considered up to date when it has the same size and was stored after the file was last
+    *                   modified.
+    */
+   public boolean isUnchanged(String name, File file, boolean compareMd5) throws IOException {
+      int slot = slot(keys, fingerprint(name));
+      if (keys[slot] == EMPTY) {
+         return false;
+      }
+      markSeen(slot);
+      if (sizes[slot] != file.length()) {
+         return false;
+      }
+      if (!compareMd5) {
+         return lastModified[slot] >= file.lastModified();
+      }
+      if (md5High[slot] == 0 && md5Low[slot] == 0) {
+         return false;
+      }
+      byte[] md5 = Files.hash(file, Hashing.md5()).asBytes();
+      return md5High[slot] == toLong(md5, 0) && md5Low[slot] == toLong(md5, 8);
+   }
+
+   /**
+    * Marks the object for a local file as seen without comparing them, for files that are known to be stored.
+    */
+   public void markSeen(String name) {
+      int slot = slot(keys, fingerprint(name));
+      if (keys[slot] != EMPTY) {
+         markSeen(slot);
+      }
+   }
+
+   /**
+    * Lists the container again and removes every object that was in the index but never seen during the run,
+    * i.e. objects without a local file. Objects stored during the run are not in the index and are kept.
+    *
+    * Batch archives hold files under other names and are never looked up, so they are kept; they are told apart
+    * by their {@link BatchUploader#ARCHIVE_METADATA} user metadata, not by their name.
+    *
+    * Nothing is removed unless the walk of the local tree was complete: a file the walk could not read, or a
+    * root that is missing, would otherwise make objects of existing files look like orphans.
+    *
+    * @return the number of objects removed.
+    * @throws IllegalStateException if the walk was not complete.
+    */
+   public int deleteOrphans(BlobStore blobStore, String container, DirectoryWalker walker) {
+      checkState(walker.isComplete(), "the directory walk was incomplete, not deleting any orphans");
+      int deleted = 0;
+      String marker = null;
+      do {
+         PageSet<? extends StorageMetadata> page = blobStore.list(container,
+               marker == null ? recursive() : afterMarker(marker).recursive());
+         for (StorageMetadata metadata : page) {
+            String name = metadata.getName();
+            if (isOrphan(name) && !isArchive(blobStore, container, name)) {
+               System.out.println("Deleting orphan " + name);
+               blobStore.removeBlob(container, name);
+               deleted++;
+            }
+         }
+         marker = page.getNextMarker();
+      } while (marker != null);
+      return deleted;
+   }
+
+   private boolean isOrphan(String name) {
+      int slot = slot(keys, fingerprint(name));
+      return keys[slot] != EMPTY && (seen.get(slot / 64) & (1L << (slot % 64))) == 0;
+   }
+
+   private static boolean isArchive(BlobStore blobStore, String container, String name) {
+      // Listings do not carry user metadata, so it takes a request, but only for the orphans.
+      BlobMetadata metadata = blobStore.blobMetadata(container, name);
+      if (metadata == null) {
+         return false;
+      }
+      for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
+         if (BatchUploader.ARCHIVE_METADATA.equalsIgnoreCase(entry.getKey())) {
+            return "true".equalsIgnoreCase(entry.getValue());
+         }
+      }
+      return false;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   private void markSeen(int slot) {
+      int word = slot / 64;
+      long bit = 1L << (slot % 64);
+      long current;
+      do {
+         current = seen.get(word);
+      } while ((current & bit) == 0 && !seen.compareAndSet(word, current, current | bit));
+   }
+
+   private static int slot(long[] table, long key) {
+      int mask = table.length - 1;
+      for (int i = (int) (key ^ (key >>> 32)) & mask; ; i = (i + 1) & mask) {
+         if (table[i] == key || table[i] == EMPTY) {
+            return i;
+         }
+      }
+   }
+
+   private void allocate(int capacity) {
+      keys = new long[capacity];
+      sizes = new long[capacity];
+      lastModified = new long[capacity];
+      md5High = new long[capacity];
+      md5Low = new long[capacity];
+   }
+
+   private void grow() {
+      if (keys.length >= (1 << 30)) {
+         throw new IllegalStateException("too many objects: " + size);
+      }
+      long[] oldKeys = keys;
+      long[] oldSizes = sizes;
+      long[] oldLastModified = lastModified;
+      long[] oldMd5High = md5High;
+      long[] oldMd5Low = md5Low;
+      allocate(oldKeys.length * 2);
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldKeys[i] != EMPTY) {
+            int slot = slot(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            sizes[slot] = oldSizes[i];
+            lastModified[slot] = oldLastModified[i];
+            md5High[slot] = oldMd5High[i];
+            md5Low[slot] = oldMd5Low[i];
+         }
+      }
+   }
+
+   private static long fingerprint(String name) {
+      long key = FINGERPRINT.hashString(name, UTF_8).asLong();
+      return key == EMPTY ? 1 : key;
+   }
+
+   private static long toLong(byte[] bytes, int offset) {
+      long value = 0;
+      for (int i = offset; i < offset + 8; i++) {
+         value = (value << 8) | (bytes[i] & 0xff);
+      }
+      return value;
+   }
+}
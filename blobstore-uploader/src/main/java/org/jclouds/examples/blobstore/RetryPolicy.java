@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.util.Random;
+
+/**
+ * How often and how fast a failed upload is tried again.
+ *
+ * Every file gets a budget of attempts. Between attempts we wait a random time between 0 and an exponentially
+ * growing cap ("full jitter"), so that threads that failed together do not all come back at the same moment.
+ */
+public class RetryPolicy {
+   private final int maxAttempts;
+   private final long baseDelayMillis;
+   private final long maxDelayMillis;
+   private final Random random = new Random();
+
+   public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+      if (maxAttempts < 1) {
+         throw new IllegalArgumentException("maxAttempts must be at least 1");
+      }
+      this.maxAttempts = maxAttempts;
+      this.baseDelayMillis = baseDelayMillis;
+      this.maxDelayMillis = maxDelayMillis;
+   }
+
+   /**
+    * @return true if a file that failed its attempt number attempt (starting at 1) has budget left.
+    */
+   public boolean shouldRetry(int attempt) {
+      return attempt < maxAttempts;
+   }
+
+   /**
+    * Waits before the next attempt after failed attempt number attempt (starting at 1).
+    */
+   public void backoff(int attempt) throws InterruptedException {
+      Thread.sleep(delayMillis(attempt));
+   }
+
+   long delayMillis(int attempt) {
+      long cap = baseDelayMillis;
+      for (int i = 1; i < attempt && cap < maxDelayMillis; i++) {
+         cap *= 2;
+      }
+      cap = Math.min(cap, maxDelayMillis);
+      synchronized (random) {
+         return (long) (random.nextDouble() * cap);
+      }
+   }
+
+   public int getMaxAttempts() {
+      return maxAttempts;
+   }
+}
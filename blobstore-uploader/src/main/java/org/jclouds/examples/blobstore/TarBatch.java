@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Packs small files into an in-memory tar (ustar) archive, so that many of them can be sent in a single request.
+ *
+ * Only what is needed for plain files is written. Since we write the archive ourselves, we know the exact offset
+ * of every entry, which goes into the manifest.
+ */
+public class TarBatch {
+   private static final int BLOCK = 512;
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   /**
+    * A file in the batch, where its content starts in the archive, and what it looked like when it was added.
+    */
+   public static class Entry {
+      public final File file;
+      public final String name;
+      public final long offset;
+      public final long length;
+      public final long lastModified;
+      public final String md5;
+
+      Entry(File file, String name, long offset, long length, long lastModified, String md5) {
+         this.file = file;
+         this.name = name;
+         this.offset = offset;
+         this.length = length;
+         this.lastModified = lastModified;
+         this.md5 = md5;
+      }
+   }
+
+   /**
+    * Gives us access to the buffer, so the archive can be sent without copying it.
+    */
+   private static class Buffer extends ByteArrayOutputStream {
+      Buffer(int size) {
+         super(size);
+      }
+
+      byte[] array() {
+         return buf;
+      }
+   }
+
+   private final Buffer buffer;
+   private final List<Entry> entries = new ArrayList<Entry>();
+   private final byte[] header = new byte[BLOCK];
+
+   public TarBatch(int initialSize) {
+      buffer = new Buffer(initialSize);
+   }
+
+   /**
+    * Appends a file to the archive.
+    *
+    * @return false if the name does not fit in a tar header; the file should then be uploaded on its own.
+    */
+   public boolean add(File file, String name) throws IOException {
+      byte[] nameBytes = name.getBytes(UTF_8);
+      if (nameBytes.length > 100) {
+         return false;
+      }
+      long length = file.length();
+      long lastModified = file.lastModified();
+      int start = buffer.size();
+      writeHeader(nameBytes, length, lastModified / 1000);
+      InputStream in = new FileInputStream(file);
+      try {
+         long copied = ByteStreams.copy(ByteStreams.limit(in, length), buffer);
+         if (copied != length) {
+            // The file shrank while we were reading it, the partial entry is dropped below.
+            throw new IOException("File " + file + " changed while it was read");
+         }
+      } catch (IOException e) {
+         truncate(start);
+         throw e;
+      } finally {
+         in.close();
+      }
+      // The content is in memory already, hashing it here is cheap and saves a read for the journal.
+      String md5 = Hashing.md5().hashBytes(buffer.array(), start + BLOCK, (int) length).toString();
+      pad();
+      entries.add(new Entry(file, name, start + BLOCK, length, lastModified, md5));
+      return true;
+   }
+
+   /**
+    * @return the archive, terminated by the two empty blocks tar expects. No entries may be added afterwards
+    *         until {@link #reset()} is called.
+    */
+   public ByteSource finish() {
+      buffer.write(new byte[2 * BLOCK], 0, 2 * BLOCK);
+      return ByteSource.wrap(buffer.array()).slice(0, buffer.size());
+   }
+
+   public void reset() {
+      buffer.reset();
+      entries.clear();
+   }
+
+   public List<Entry> entries() {
+      return entries;
+   }
+
+   public boolean isEmpty() {
+      return entries.isEmpty();
+   }
+
+   /**
+    * @return the number of bytes in the archive so far.
+    */
+   public int size() {
+      return buffer.size();
+   }
+
+   /**
+    * @return the number of content bytes, without tar headers and padding.
+    */
+   public long contentLength() {
+      long total = 0;
+      for (Entry entry : entries) {
+         total += entry.length;
+      }
+      return total;
+   }
+
+   private void writeHeader(byte[] name, long length, long mtime) {
+      Arrays.fill(header, (byte) 0);
+      System.arraycopy(name, 0, header, 0, name.length);
+      octal(header, 100, 8, 0644);
+      octal(header, 108, 8, 0);
+      octal(header, 116, 8, 0);
+      octal(header, 124, 12, length);
+      octal(header, 136, 12, mtime);
+      header[156] = '0';
+      System.arraycopy("ustar\0".getBytes(UTF_8), 0, header, 257, 6);
+      header[263] = '0';
+      header[264] = '0';
+
+      // The checksum is computed with the checksum field itself filled with spaces.
+      Arrays.fill(header, 148, 156, (byte) ' ');
+      long checksum = 0;
+      for (byte b : header) {
+         checksum += b & 0xff;
+      }
+      octal(header, 148, 7, checksum);
+      buffer.write(header, 0, BLOCK);
+   }
+
+   private static void octal(byte[] header, int offset, int width, long value) {
+      String digits = Long.toOctalString(value);
+      int padding = width - 1 - digits.length();
+      for (int i = 0; i < padding; i++) {
+         header[offset + i] = '0';
+      }
+      for (int i = 0; i < digits.length(); i++) {
+         header[offset + padding + i] = (byte) digits.charAt(i);
+      }
+      header[offset + width - 1] = 0;
+   }
+
+   private void pad() {
+      int remainder = buffer.size() % BLOCK;
+      if (remainder != 0) {
+         buffer.write(new byte[BLOCK - remainder], 0, BLOCK - remainder);
+      }
+   }
+
+   private void truncate(int size) {
+      byte[] kept = Arrays.copyOf(buffer.array(), size);
+      buffer.reset();
+      buffer.write(kept, 0, size);
+   }
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the queue filled by the {@link DirectoryWalker} and starts a new thread for every upload, instead of
+ * having a fixed set of {@link UploadWorker} threads take turns.
+ *
+ * With virtual threads a blocked upload costs a few KB of heap instead of an OS thread, so thousands of small
+ * uploads can wait on the network at once. The {@link ConcurrencyController} still decides how many: a permit is
+ * taken before an upload is started and given back when it is done, so the walk is held back as before.
+ */
+public class UploadDispatcher implements Runnable {
+   private final BlockingQueue<File> queue;
+   private final String region;
+   private final ExecutorService uploads;
+
+   public UploadDispatcher(BlockingQueue<File> queue, String region, ExecutorService uploads) {
+      this.queue = queue;
+      this.region = region;
+      this.uploads = uploads;
+   }
+
+   /**
+    * @return an executor that runs every task on a new virtual thread, or on a new platform thread before Java 21.
+    */
+   public static ExecutorService newVirtualThreadExecutor() {
+      try {
+         // Looked up at runtime, so the uploader still builds and runs on Java 8.
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      } catch (NoSuchMethodException e) {
+         System.out.println("Virtual threads need Java 21 or later, using a platform thread per upload instead");
+         return Executors.newCachedThreadPool();
+      } catch (ReflectiveOperationException e) {
+         throw new IllegalStateException("Cannot create virtual threads", e);
+      }
+   }
+
+   @Override
+   public void run() {
+      BatchUploader batch = newBatch();
+      try {
+         while (true) {
+            File file = queue.take();
+            if (file == DirectoryWalker.END_OF_FILES) {
+               break;
+            }
+            if (UploadWorker.isUnchanged(file)) {
+               continue;
+            }
+            if (batch != null && file.length() <= BlobUploaderMain.batchMaxFileSize) {
+               try {
+                  if (batch.offer(file)) {
+                     if (batch.isFull()) {
+                        submit(batch);
+                        batch = newBatch();
+                     }
+                     continue;
+                  }
+               } catch (IOException e) {
+                  System.out.println("Skipping " + file + ": " + e.getMessage());
+                  continue;
+               }
+            }
+            submit(file);
+         }
+         if (batch != null && !batch.isEmpty()) {
+            submit(batch);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         // Returns once the last upload is done, which is what the caller of the dispatcher waits for.
+         uploads.shutdown();
+         try {
+            uploads.awaitTermination(1, TimeUnit.DAYS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   private BatchUploader newBatch() {
+      return BlobUploaderMain.batchSize > 0 ? new BatchUploader(region, BlobUploaderMain.batchSize) : null;
+   }
+
+   private void submit(final File file) throws InterruptedException {
+      start(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               new BlobUploader(file).run();
+            } catch (RuntimeException e) {
+               System.out.println("Failed to upload " + file + " on thread " + Thread.currentThread());
+               e.printStackTrace();
+            }
+         }
+      });
+   }
+
+   private void submit(final BatchUploader batch) throws InterruptedException {
+      start(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               batch.flush();
+            } catch (RuntimeException e) {
+               System.out.println("Failed to upload a batch on thread " + Thread.currentThread());
+               e.printStackTrace();
+            }
+         }
+      });
+   }
+
+   /**
+    * Waits for a permit, then runs the upload on a thread of its own, which gives the permit back when it is done.
+    */
+   private void start(final Runnable upload) throws InterruptedException {
+      BlobUploaderMain.concurrency.acquire();
+      try {
+         uploads.execute(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  upload.run();
+               } finally {
+                  BlobUploaderMain.concurrency.release();
+               }
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         BlobUploaderMain.concurrency.release();
+         throw e;
+      }
+   }
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * An append-only journal of completed uploads, so that a run that died can be restarted without sending everything
+ * again. Each line holds, tab separated: object name, size, mtime, md5, store, container, ETag. The object name
+ * is the path of the file below the directory of the run, and the store names the provider, endpoint and region
+ * the file went to.
+ *
+ * On open, the existing journal is read once and only a 64 bit fingerprint of (store, container, name, size, mtime)
+ * is kept per entry in a {@link FingerprintSet}; checking a file is then O(1). A file that changed since it was
+ * uploaded has a different fingerprint and is uploaded again, and so is a file uploaded to another container or
+ * store. The mtime counts in whole seconds, which is all that {@link File#lastModified()} has on some JDKs.
+ *
+ * Lines are buffered and the file is forced to disk every {@link #SYNC_RECORDS} records or {@link #SYNC_MILLIS}
+ * milliseconds, whichever comes first. A crash loses at most that window, and those files are simply uploaded
+ * again. A torn last line is ignored when the journal is read.
+ *
+ * The fsync is a group commit on a thread of its own: uploads only append to the buffer under a
+ * {@link ReentrantLock}, and the sync thread flushes the buffer under the lock but forces it to disk outside of
+ * it. No upload waits for the disk, and a virtual thread never blocks in a monitor.
+ */
+public class UploadJournal implements Closeable {
+   private static final int SYNC_RECORDS = 1000;
+   private static final long SYNC_MILLIS = TimeUnit.SECONDS.toMillis(1);
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+   private static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+
+   private final String store;
+   private final FingerprintSet completed;
+   private final FileOutputStream out;
+   private final Writer writer;
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition syncNeeded = lock.newCondition();
+   private final Thread syncer;
+   private volatile String lastContainer;
+   private int unsynced;
+   private boolean closed;
+
+   /**
+    * @param store the provider, endpoint and region of this run; entries of other stores are not completed.
+    */
+   public UploadJournal(File file, String store) throws IOException {
+      this.store = store;
+      completed = new FingerprintSet(1024);
+      if (file.exists()) {
+         load(file);
+      }
+      out = new FileOutputStream(file, true);
+      writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+      syncer = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            syncLoop();
+         }
+      }, "journal-sync");
+      syncer.setDaemon(true);
+      syncer.start();
+   }
+
+   /**
+    * @return true if the file of this object, as it is now (same size and modification time), was uploaded to the
+    *         container of this store by an earlier run.
+    */
+   public boolean isCompleted(String name, long size, long mtime, String container) {
+      return completed.contains(fingerprint(store, container, name, size, mtime));
+   }
+
+   /**
+    * Records that the file of an object was uploaded.
+    *
+    * @param name the name of the object, which is the path of the file below the directory of the run.
+    */
+   public void record(String name, long size, long mtime, String md5, String container, String eTag)
+         throws IOException {
+      if (name.indexOf('\n') >= 0 || container.indexOf('\t') >= 0) {
+         // Cannot be journaled; it will just be uploaded again on restart.
+         return;
+      }
+      String line = name + "\t" + size + "\t" + mtime + "\t" + md5 + "\t" + store + "\t" + container + "\t" + eTag +
+            "\n";
+      lock.lock();
+      try {
+         writer.write(line);
+         lastContainer = container;
+         if (++unsynced >= SYNC_RECORDS) {
+            syncNeeded.signal();
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return the container of the last entry of this store in the journal, or null if there is none.
+    */
+   public String getLastContainer() {
+      return lastContainer;
+   }
+
+   /**
+    * @return the number of files completed by earlier runs.
+    */
+   public int getCompletedCount() {
+      return completed.size();
+   }
+
+   @Override
+   public void close() throws IOException {
+      lock.lock();
+      try {
+         closed = true;
+         syncNeeded.signal();
+      } finally {
+         lock.unlock();
+      }
+      try {
+         syncer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      lock.lock();
+      try {
+         writer.flush();
+      } finally {
+         lock.unlock();
+      }
+      out.getFD().sync();
+      writer.close();
+   }
+
+   /**
+    * Runs on the sync thread until the journal is closed, which then does the last sync itself.
+    */
+   private void syncLoop() {
+      while (true) {
+         lock.lock();
+         try {
+            long left = TimeUnit.MILLISECONDS.toNanos(SYNC_MILLIS);
+            while (!closed && unsynced < SYNC_RECORDS && left > 0) {
+               left = syncNeeded.awaitNanos(left);
+            }
+            if (closed) {
+               return;
+            }
+            if (unsynced == 0) {
+               continue;
+            }
+            writer.flush();
+            unsynced = 0;
+         } catch (InterruptedException e) {
+            return;
+         } catch (IOException e) {
+            // The uploads went fine; at worst these files are sent again after a restart.
+            e.printStackTrace();
+            continue;
+         } finally {
+            lock.unlock();
+         }
+         try {
+            // Records keep being appended to the buffer meanwhile, for the next sync.
+            out.getFD().sync();
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      }
+   }
+
+   private void load(File file) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            // The name may contain tabs, so the fields are taken from the end of the line.
+            int eTag = line.lastIndexOf('\t');
+            int container = line.lastIndexOf('\t', eTag - 1);
+            int entryStore = line.lastIndexOf('\t', container - 1);
+            int md5 = line.lastIndexOf('\t', entryStore - 1);
+            int mtime = line.lastIndexOf('\t', md5 - 1);
+            int size = line.lastIndexOf('\t', mtime - 1);
+            if (size <= 0) {
+               continue;
+            }
+            try {
+               String name = line.substring(entryStore + 1, container);
+               completed.add(fingerprint(name, line.substring(container + 1, eTag), line.substring(0, size),
+                     Long.parseLong(line.substring(size + 1, mtime)),
+                     Long.parseLong(line.substring(mtime + 1, md5))));
+               if (name.equals(store)) {
+                  lastContainer = line.substring(container + 1, eTag);
+               }
+            } catch (NumberFormatException e) {
+               // A line torn by a crash; that file is uploaded again.
+            }
+         }
+      } finally {
+         reader.close();
+      }
+   }
+
+   private static long fingerprint(String store, String container, String name, long size, long mtime) {
+      return FINGERPRINT.newHasher()
+            .putString(store, UTF_8)
+            .putChar('\t')
+            .putString(container, UTF_8)
+            .putChar('\t')
+            .putString(name, UTF_8)
+            .putLong(size)
+            .putLong(mtime / 1000)
+            .hash().asLong();
+   }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latencies of the whole run, recorded without locks by all upload threads.
+ *
+ * {@link #run()} is scheduled periodically: it computes the rates and latency percentiles of the interval since
+ * the last call and logs them on one line. The same values are available over JMX.
+ */
+public class UploadMetrics implements UploadMetricsMXBean, Runnable {
+   public static final String OBJECT_NAME = "org.jclouds.examples.blobstore:type=UploadMetrics";
+
+   private final LongAdder bytes = new LongAdder();
+   private final LongAdder objects = new LongAdder();
+   private final LongAdder requests = new LongAdder();
+   private final LongAdder failures = new LongAdder();
+   private final LongAdder retries = new LongAdder();
+   private final LongAdder md5Mismatches = new LongAdder();
+   private final LongAdder latencyNanos = new LongAdder();
+   private final LatencyHistogram latency = new LatencyHistogram();
+
+   // Only written by run(), which is never called concurrently.
+   private long lastBytes;
+   private long lastObjects;
+   private long lastSample = System.nanoTime();
+   private LatencyHistogram.Snapshot lastLatency = latency.snapshot();
+
+   private volatile double bytesPerSecond;
+   private volatile double objectsPerSecond;
+   private volatile LatencyHistogram.Snapshot intervalLatency = lastLatency;
+
+   /**
+    * Records one request to the provider, successful or not.
+    */
+   public void recordRequest(long nanos, boolean success) {
+      requests.increment();
+      latencyNanos.add(nanos);
+      latency.record(nanos);
+      if (!success) {
+         failures.increment();
+      }
+   }
+
+   /**
+    * Records files that are safely stored.
+    */
+   public void recordUploaded(long objectCount, long byteCount) {
+      objects.add(objectCount);
+      bytes.add(byteCount);
+   }
+
+   public void recordRetry() {
+      retries.increment();
+   }
+
+   public void recordMd5Mismatch() {
+      md5Mismatches.increment();
+   }
+
+   public void register() {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         server.registerMBean(this, name);
+      } catch (JMException e) {
+         // Metrics are nice to have; the upload goes on without them.
+         e.printStackTrace();
+      }
+   }
+
+   @Override
+   public void run() {
+      long now = System.nanoTime();
+      long currentBytes = bytes.sum();
+      long currentObjects = objects.sum();
+      LatencyHistogram.Snapshot currentLatency = latency.snapshot();
+
+      double seconds = (now - lastSample) / (double) TimeUnit.SECONDS.toNanos(1);
+      if (seconds > 0) {
+         bytesPerSecond = (currentBytes - lastBytes) / seconds;
+         objectsPerSecond = (currentObjects - lastObjects) / seconds;
+      }
+      intervalLatency = currentLatency.minus(lastLatency);
+
+      lastSample = now;
+      lastBytes = currentBytes;
+      lastObjects = currentObjects;
+      lastLatency = currentLatency;
+
+      long total = BlobUploaderMain.totalBytes.get();
+      System.out.printf("%s, %.0f objects/s | %d MB, %.1f%% of %d MB found | p50 %.0fms p99 %.0fms max %.0fms | " +
+            "retries %d, md5 mismatches %d, failed requests %d | concurrency %d%n",
+            ConcurrencyController.formatThroughput(bytesPerSecond), objectsPerSecond,
+            currentBytes / (1024 * 1024), total > 0 ? 100.0 * currentBytes / total : 0.0, total / (1024 * 1024),
+            getLatencyP50Millis(), getLatencyP99Millis(), getLatencyMaxMillis(),
+            retries.sum(), md5Mismatches.sum(), failures.sum(), getConcurrencyLimit());
+   }
+
+   @Override
+   public long getBytesUploaded() {
+      return bytes.sum();
+   }
+
+   @Override
+   public long getObjectsUploaded() {
+      return objects.sum();
+   }
+
+   @Override
+   public long getRequests() {
+      return requests.sum();
+   }
+
+   @Override
+   public long getFailedRequests() {
+      return failures.sum();
+   }
+
+   /**
+    * @return the total time spent in requests, to compute average latencies over an interval.
+    */
+   public long getLatencyNanos() {
+      return latencyNanos.sum();
+   }
+
+   @Override
+   public long getRetries() {
+      return retries.sum();
+   }
+
+   @Override
+   public long getMd5Mismatches() {
+      return md5Mismatches.sum();
+   }
+
+   @Override
+   public double getBytesPerSecond() {
+      return bytesPerSecond;
+   }
+
+   @Override
+   public double getObjectsPerSecond() {
+      return objectsPerSecond;
+   }
+
+   @Override
+   public double getLatencyP50Millis() {
+      return intervalLatency.getPercentile(50) / 1000.0;
+   }
+
+   @Override
+   public double getLatencyP99Millis() {
+      return intervalLatency.getPercentile(99) / 1000.0;
+   }
+
+   @Override
+   public double getLatencyMaxMillis() {
+      return intervalLatency.getMax() / 1000.0;
+   }
+
+   @Override
+   public int getConcurrencyLimit() {
+      ConcurrencyController concurrency = BlobUploaderMain.concurrency;
+      return concurrency == null ? 0 : concurrency.getLimit();
+   }
+}
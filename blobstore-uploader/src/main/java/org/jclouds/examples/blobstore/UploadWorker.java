@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Drains the queue filled by the {@link DirectoryWalker} and uploads each file on the current thread, until the
+ * end-of-files marker is taken.
+ */
+public class UploadWorker implements Runnable {
+   private final BlockingQueue<File> queue;
+   private final String region;
+
+   public UploadWorker(BlockingQueue<File> queue, String region) {
+      this.queue = queue;
+      this.region = region;
+   }
+
+   @Override
+   public void run() {
+      BatchUploader batch = null;
+      if (BlobUploaderMain.batchSize > 0) {
+         batch = new BatchUploader(region, BlobUploaderMain.batchSize);
+      }
+      try {
+         while (true) {
+            File file = queue.take();
+            if (file == DirectoryWalker.END_OF_FILES) {
+               if (batch != null) {
+                  flush(batch);
+               }
+               return;
+            }
+            if (isUnchanged(file)) {
+               continue;
+            }
+            BlobUploaderMain.concurrency.acquire();
+            try {
+               if (batch != null && file.length() <= BlobUploaderMain.batchMaxFileSize && batch.add(file)) {
+                  continue;
+               }
+               new BlobUploader(file).run();
+            } catch (IOException e) {
+               System.out.println("Skipping " + file + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+               // One broken upload must not take the worker down with it, or the queue would never be drained.
+               System.out.println("Failed to upload " + file + " on thread " + Thread.currentThread());
+               e.printStackTrace();
+            } finally {
+               BlobUploaderMain.concurrency.release();
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * In sync mode, checks whether the container already holds this file as it is now.
+    */
+   static boolean isUnchanged(File file) {
+      RemoteIndex index = BlobUploaderMain.remoteIndex;
+      if (index == null) {
+         return false;
+      }
+      try {
+         if (index.isUnchanged(BlobUploader.objectName(file), file, BlobUploaderMain.syncMd5)) {
+            BlobUploaderMain.filesUnchanged.incrementAndGet();
+            BlobUploaderMain.totalBytes.addAndGet(-file.length());
+            return true;
+         }
+      } catch (IOException e) {
+         // Could not hash it, so upload it; that will report the problem if there is one.
+      }
+      return false;
+   }
+
+   private void flush(BatchUploader batch) throws InterruptedException {
+      BlobUploaderMain.concurrency.acquire();
+      try {
+         batch.flush();
+      } catch (RuntimeException e) {
+         System.out.println("Failed to upload the last batch on thread " + Thread.currentThread());
+         e.printStackTrace();
+      } finally {
+         BlobUploaderMain.concurrency.release();
+      }
+   }
+}
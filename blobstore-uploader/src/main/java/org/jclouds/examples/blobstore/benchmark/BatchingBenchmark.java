@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.jclouds.examples.blobstore.BlobUploaderMain;
+
+import com.google.common.io.Files;
+
+/**
+ * Compares objects/sec of the uploader with and without small file batching, against a {@link LocalSwiftServer}.
+ *
+ * Usage is: java BatchingBenchmark files fileSize latencyMillis batchSize
+ *
+ * All parameters are optional and default to 2000 files of 8KB, 20ms latency and 1MB batches.
+ */
+public class BatchingBenchmark {
+
+   public static void main(String[] args) throws IOException {
+      int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 8 * 1024;
+      long latency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+      long batchSize = args.length > 3 ? Long.parseLong(args[3]) : 1024 * 1024;
+
+      File directory = createFiles(files, fileSize);
+      LocalSwiftServer server = new LocalSwiftServer(latency);
+      server.start();
+      try {
+         String[] common = {
+               "--provider", "openstack-swift",
+               "--endpoint", server.getEndpoint(),
+               "--region", LocalSwiftServer.REGION,
+               "--username", "bench:bench",
+               "--password", "bench",
+               "--directory", directory.getAbsolutePath()
+         };
+
+         double single = run("one request per file", common, server, files);
+         double batched = run("batches of " + batchSize + " bytes", concat(common,
+               "--batch-size", String.valueOf(batchSize),
+               "--batch-max-file-size", String.valueOf(fileSize)), server, files);
+
+         System.out.printf("%d files of %d bytes, %dms latency%n", files, fileSize, latency);
+         System.out.printf("  one request per file: %.1f objects/s%n", single);
+         System.out.printf("  batched:              %.1f objects/s (%.1fx)%n", batched, batched / single);
+      } finally {
+         server.stop();
+         for (File f : directory.listFiles()) {
+            f.delete();
+         }
+         directory.delete();
+      }
+   }
+
+   private static double run(String name, String[] args, LocalSwiftServer server, int files) throws IOException {
+      long requests = server.getRequestCount();
+      long start = System.nanoTime();
+      BlobUploaderMain.main(args);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%s: %d files in %.2fs, %d requests%n", name, files, seconds,
+            server.getRequestCount() - requests);
+      return files / seconds;
+   }
+
+   static File createFiles(int count, int size) throws IOException {
+      File directory = Files.createTempDir();
+      Random random = new Random(0);
+      byte[] content = new byte[size];
+      for (int i = 0; i < count; i++) {
+         random.nextBytes(content);
+         Files.write(content, new File(directory, "file-" + i));
+      }
+      return directory;
+   }
+
+   static String[] concat(String[] first, String... second) {
+      String[] result = new String[first.length + second.length];
+      System.arraycopy(first, 0, result, 0, first.length);
+      System.arraycopy(second, 0, result, first.length, second.length);
+      return result;
+   }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.Constants;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.http.apachehc.config.ApacheHCHttpCommandExecutorServiceModule;
+import org.jclouds.io.Closeables2;
+import org.jclouds.openstack.swift.v1.blobstore.RegionScopedBlobStoreContext;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import com.google.inject.Module;
+
+/**
+ * Compares one jclouds context per thread, as the uploader used to have, with one shared context and a pool of
+ * connections, against a {@link LocalSwiftServer}.
+ *
+ * For every thread count, each thread puts the same number of small objects. Reported are the time until all
+ * threads can send their first request (building contexts and authenticating), the total time, the number of
+ * authentications and connections the server saw, and the heap and resident memory while the contexts are open.
+ *
+ * Usage is: java ContextBenchmark threadCounts objectsPerThread latencyMillis
+ *
+ * All parameters are optional and default to 1,4,16,64 threads, 20 objects and 5ms latency. Memory is only
+ * comparable from one line to the next when the thread counts go up, as the JVM rarely gives memory back.
+ */
+public class ContextBenchmark {
+   private static final String CONTAINER = "bench";
+   private static final byte[] CONTENT = new byte[4096];
+
+   public static void main(String[] args) throws Exception {
+      String threadCounts = args.length > 0 ? args[0] : "1,4,16,64";
+      int objects = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+      long latency = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+      System.out.println("threads  context     startup ms  total ms  auths  connections  heap MB  RSS MB");
+      for (String count : threadCounts.split(",")) {
+         int threads = Integer.parseInt(count.trim());
+         for (boolean shared : new boolean[] { true, false }) {
+            LocalSwiftServer server = new LocalSwiftServer(latency);
+            server.start();
+            try {
+               run(server, threads, objects, shared);
+            } finally {
+               server.stop();
+            }
+         }
+      }
+   }
+
+   private static void run(final LocalSwiftServer server, int threads, final int objects, final boolean shared)
+         throws InterruptedException {
+      final List<RegionScopedBlobStoreContext> contexts = new ArrayList<RegionScopedBlobStoreContext>();
+      final CountDownLatch ready = new CountDownLatch(threads);
+      final CountDownLatch done = new CountDownLatch(threads);
+      long start = System.nanoTime();
+
+      if (shared) {
+         RegionScopedBlobStoreContext context = newContext(server, true, threads);
+         contexts.add(context);
+         context.getBlobStore(LocalSwiftServer.REGION).createContainerInLocation(null, CONTAINER);
+      }
+
+      for (int i = 0; i < threads; i++) {
+         final int thread = i;
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               boolean started = false;
+               try {
+                  RegionScopedBlobStoreContext context;
+                  if (shared) {
+                     context = contexts.get(0);
+                  } else {
+                     context = newContext(server, false, 0);
+                     synchronized (contexts) {
+                        contexts.add(context);
+                     }
+                     context.getBlobStore(LocalSwiftServer.REGION).createContainerInLocation(null, CONTAINER);
+                  }
+                  ready.countDown();
+                  started = true;
+                  BlobStore blobStore = context.getBlobStore(LocalSwiftServer.REGION);
+                  for (int j = 0; j < objects; j++) {
+                     Blob blob = blobStore.blobBuilder("object-" + thread + "-" + j).payload(CONTENT).build();
+                     blobStore.putBlob(CONTAINER, blob);
+                  }
+               } catch (RuntimeException e) {
+                  e.printStackTrace();
+               } finally {
+                  if (!started) {
+                     ready.countDown();
+                  }
+                  done.countDown();
+               }
+            }
+         }).start();
+      }
+
+      ready.await();
+      long startup = System.nanoTime() - start;
+      done.await();
+      long total = System.nanoTime() - start;
+
+      // Measured while the contexts are still open, that is what a running upload holds on to.
+      System.gc();
+      long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      long rss = residentSetSize();
+      for (RegionScopedBlobStoreContext context : contexts) {
+         Closeables2.closeQuietly(context);
+      }
+
+      System.out.printf("%7d  %-10s  %10d  %8d  %5d  %11d  %7d  %6s%n", threads, shared ? "shared" : "per thread",
+            TimeUnit.NANOSECONDS.toMillis(startup), TimeUnit.NANOSECONDS.toMillis(total),
+            server.getAuthenticationCount(), server.getConnectionCount(), heap / (1024 * 1024),
+            rss < 0 ? "n/a" : String.valueOf(rss / (1024 * 1024)));
+   }
+
+   /**
+    * Builds a context the way the uploader does now when pooled, and the way it used to otherwise: the default
+    * driver with default limits.
+    *
+    * @param maxConnections size of the connection pool, only used when pooled.
+    */
+   private static RegionScopedBlobStoreContext newContext(LocalSwiftServer server, boolean pooled,
+                                                          int maxConnections) {
+      ContextBuilder builder = ContextBuilder.newBuilder("openstack-swift")
+            .endpoint(server.getEndpoint())
+            .credentials("bench:bench", "bench");
+      if (pooled) {
+         Properties overrides = new Properties();
+         overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_CONTEXT, String.valueOf(maxConnections));
+         overrides.setProperty(Constants.PROPERTY_MAX_CONNECTIONS_PER_HOST, String.valueOf(maxConnections));
+         builder.overrides(overrides)
+               .modules(ImmutableSet.<Module>of(new ApacheHCHttpCommandExecutorServiceModule()));
+      }
+      return builder.buildView(RegionScopedBlobStoreContext.class);
+   }
+
+   /**
+    * @return the resident set size of this process in bytes, or -1 where /proc is not available.
+    */
+   private static long residentSetSize() {
+      File status = new File("/proc/self/status");
+      if (!status.exists()) {
+         return -1;
+      }
+      try {
+         for (String line : Files.readLines(status, Charset.forName("US-ASCII"))) {
+            if (line.startsWith("VmRSS:")) {
+               return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+      return -1;
+   }
+}
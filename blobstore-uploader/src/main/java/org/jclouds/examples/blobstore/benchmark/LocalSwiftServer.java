@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for a Swift object store and its Keystone endpoint, good enough for the "openstack-swift" provider to
+ * authenticate, create a container and put objects. Objects are hashed and thrown away. Every request is delayed
+ * by a fixed latency, which is what makes small object uploads slow against a real service.
+ *
+ * Use {@link #getEndpoint()} as endpoint, any "tenant:user" as identity, any credential, and "local" as region.
+ */
+public class LocalSwiftServer {
+   public static final String REGION = "local";
+
+   private final HttpServer server;
+   /**
+    * Handler threads are named, so benchmarks can tell them apart from the threads of the uploader.
+    */
+   public static final String THREAD_PREFIX = "local-swift-";
+
+   private final AtomicInteger threads = new AtomicInteger();
+   private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+         Thread thread = new Thread(runnable, THREAD_PREFIX + threads.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+   private final long latencyMillis;
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong objects = new AtomicLong();
+   private final AtomicLong authentications = new AtomicLong();
+   private final Set<InetSocketAddress> connections =
+         Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+
+   public LocalSwiftServer(long latencyMillis) throws IOException {
+      this.latencyMillis = latencyMillis;
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/", new HttpHandler() {
+         @Override
+         public void handle(HttpExchange exchange) throws IOException {
+            try {
+               dispatch(exchange);
+            } finally {
+               exchange.close();
+            }
+         }
+      });
+      server.setExecutor(executor);
+   }
+
+   public void start() {
+      server.start();
+   }
+
+   public void stop() {
+      server.stop(0);
+      executor.shutdownNow();
+   }
+
+   public String getEndpoint() {
+      return "http://127.0.0.1:" + server.getAddress().getPort() + "/v2.0/";
+   }
+
+   public long getRequestCount() {
+      return requests.get();
+   }
+
+   public long getObjectCount() {
+      return objects.get();
+   }
+
+   public long getAuthenticationCount() {
+      return authentications.get();
+   }
+
+   /**
+    * @return the number of distinct client connections seen since the server started.
+    */
+   public int getConnectionCount() {
+      return connections.size();
+   }
+
+   private void dispatch(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      connections.add(exchange.getRemoteAddress());
+      try {
+         Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return;
+      }
+
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath();
+      String query = exchange.getRequestURI().getQuery();
+
+      if ("POST".equals(method) && path.endsWith("/tokens")) {
+         ByteStreams.toByteArray(exchange.getRequestBody());
+         authentications.incrementAndGet();
+         respond(exchange, 200, "application/json", access());
+      } else if ("PUT".equals(method) && query != null && query.contains("extract-archive")) {
+         long created = countTarEntries(exchange.getRequestBody());
+         objects.addAndGet(created);
+         respond(exchange, 200, "application/json", "{\"Number Files Created\": " + created +
+               ", \"Response Status\": \"201 Created\", \"Response Body\": \"\", \"Errors\": []}");
+      } else if ("PUT".equals(method) && path.split("/").length > 4) {
+         // /v1/AUTH_tenant/container/object
+         Hasher hasher = Hashing.md5().newHasher();
+         byte[] buffer = new byte[8192];
+         InputStream in = exchange.getRequestBody();
+         int read;
+         while ((read = in.read(buffer)) != -1) {
+            hasher.putBytes(buffer, 0, read);
+         }
+         objects.incrementAndGet();
+         exchange.getResponseHeaders().set("ETag", hasher.hash().toString());
+         exchange.sendResponseHeaders(201, -1);
+      } else if ("PUT".equals(method)) {
+         exchange.sendResponseHeaders(201, -1);
+      } else if ("HEAD".equals(method)) {
+         exchange.getResponseHeaders().set("X-Container-Object-Count", "0");
+         exchange.getResponseHeaders().set("X-Container-Bytes-Used", "0");
+         exchange.sendResponseHeaders(204, -1);
+      } else {
+         exchange.sendResponseHeaders(404, -1);
+      }
+   }
+
+   private String access() {
+      String objectStore = "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/AUTH_bench";
+      return "{\"access\": {" +
+            "\"token\": {\"id\": \"bench-token\", \"expires\": \"2099-01-01T00:00:00Z\"," +
+            " \"tenant\": {\"id\": \"bench\", \"name\": \"bench\"}}," +
+            "\"serviceCatalog\": [{\"type\": \"object-store\", \"name\": \"swift\", \"endpoints\": [" +
+            "{\"tenantId\": \"bench\", \"region\": \"" + REGION + "\", \"publicURL\": \"" + objectStore + "\"," +
+            " \"internalURL\": \"" + objectStore + "\"}]}]," +
+            "\"user\": {\"id\": \"bench\", \"name\": \"bench\", \"roles\": []}}}";
+   }
+
+   private static void respond(HttpExchange exchange, int status, String contentType, String body)
+         throws IOException {
+      byte[] bytes = body.getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+   }
+
+   /**
+    * Walks the tar headers of a bulk extract request to find out how many objects it would have created.
+    */
+   private static long countTarEntries(InputStream in) throws IOException {
+      byte[] header = new byte[512];
+      long count = 0;
+      while (true) {
+         try {
+            ByteStreams.readFully(in, header);
+         } catch (java.io.EOFException e) {
+            return count;
+         }
+         if (header[0] == 0) {
+            ByteStreams.exhaust(in);
+            return count;
+         }
+         long size = Long.parseLong(new String(header, 124, 11, "US-ASCII").trim(), 8);
+         ByteStreams.skipFully(in, (size + 511) / 512 * 512);
+         count++;
+      }
+   }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.examples.blobstore.BlobUploaderMain;
+
+/**
+ * Compares the fixed pool of worker threads with one virtual thread per upload (--virtual-threads), for the same
+ * number of uploads in flight, against a {@link LocalSwiftServer} with injected latency.
+ *
+ * Besides objects/s, the peak number of platform threads of the uploader is sampled while it runs: the threads
+ * started since the run began, so neither the handler threads of the server nor threads still winding down after
+ * the previous run count. Virtual threads are not platform threads, so they do not show up there. Every run starts
+ * from fresh uploader state, as {@link BlobUploaderMain#main(String[])} resets it.
+ *
+ * Usage is: java VirtualThreadBenchmark files latencyMillis concurrencies
+ *
+ * All parameters are optional and default to 5000 files of 1KB, 50ms latency and 16,256,1024 uploads in flight.
+ * Run it on Java 21 or later; on older versions --virtual-threads falls back to platform threads.
+ */
+public class VirtualThreadBenchmark {
+   private static final int FILE_SIZE = 1024;
+
+   public static void main(String[] args) throws IOException, InterruptedException {
+      int files = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+      long latency = args.length > 1 ? Long.parseLong(args[1]) : 50;
+      String concurrencies = args.length > 2 ? args[2] : "16,256,1024";
+
+      File directory = BatchingBenchmark.createFiles(files, FILE_SIZE);
+      LocalSwiftServer server = new LocalSwiftServer(latency);
+      server.start();
+      List<String> results = new ArrayList<String>();
+      try {
+         String[] common = {
+               "--provider", "openstack-swift",
+               "--endpoint", server.getEndpoint(),
+               "--region", LocalSwiftServer.REGION,
+               "--username", "bench:bench",
+               "--password", "bench",
+               "--directory", directory.getAbsolutePath(),
+               "--metrics-interval", "60"
+         };
+         for (String concurrency : concurrencies.split(",")) {
+            String[] threads = BatchingBenchmark.concat(common, "--threads", concurrency.trim());
+            results.add(run("fixed pool", concurrency.trim(), threads, files));
+            results.add(run("virtual threads", concurrency.trim(), BatchingBenchmark.concat(threads,
+                  "--virtual-threads"), files));
+         }
+      } finally {
+         server.stop();
+         for (File f : directory.listFiles()) {
+            f.delete();
+         }
+         directory.delete();
+      }
+
+      System.out.printf("%d files of %d bytes, %dms latency%n", files, FILE_SIZE, latency);
+      System.out.println("in flight  mode             objects/s  peak platform threads");
+      for (String result : results) {
+         System.out.println(result);
+      }
+   }
+
+   private static String run(String mode, String concurrency, String[] args, int files)
+         throws IOException, InterruptedException {
+      ThreadSampler sampler = new ThreadSampler();
+      sampler.start();
+      long start = System.nanoTime();
+      BlobUploaderMain.main(args);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      sampler.interrupt();
+      sampler.join();
+      return String.format("%9s  %-15s  %9.1f  %21d", concurrency, mode, files / seconds, sampler.peak.get());
+   }
+
+   /**
+    * Counts the live platform threads that were started after it and do not belong to the server, every 10ms.
+    */
+   private static class ThreadSampler extends Thread {
+      final AtomicInteger peak = new AtomicInteger();
+      private final Set<Thread> before;
+
+      ThreadSampler() {
+         setDaemon(true);
+         before = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+         before.add(this);
+      }
+
+      @Override
+      public void run() {
+         while (!isInterrupted()) {
+            int count = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+               if (!before.contains(thread) && !thread.getName().startsWith(LocalSwiftServer.THREAD_PREFIX)) {
+                  count++;
+               }
+            }
+            peak.set(Math.max(peak.get(), count));
+            try {
+               Thread.sleep(10);
+            } catch (InterruptedException e) {
+               return;
+            }
+         }
+      }
+   }
+}
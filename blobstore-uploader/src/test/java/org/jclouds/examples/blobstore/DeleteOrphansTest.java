@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+public class DeleteOrphansTest {
+   private static final String CONTAINER = "container";
+   private static final String STORE = "transient null null";
+
+   private BlobStoreContext context;
+   private BlobStore blobStore;
+   private File dir;
+   private File journalFile;
+
+   @Before
+   public void setUp() throws IOException {
+      context = ContextBuilder.newBuilder("transient").buildView(BlobStoreContext.class);
+      blobStore = context.getBlobStore();
+      blobStore.createContainerInLocation(null, CONTAINER);
+      dir = Files.createTempDir();
+      journalFile = File.createTempFile("journal", ".tsv");
+      journalFile.delete();
+      BlobUploaderMain.directory = dir;
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      if (BlobUploaderMain.journal != null) {
+         BlobUploaderMain.journal.close();
+         BlobUploaderMain.journal = null;
+      }
+      BlobUploaderMain.remoteIndex = null;
+      BlobUploaderMain.containerName = null;
+      BlobUploaderMain.directory = null;
+      context.close();
+      FileUtils.deleteDirectory(dir);
+      journalFile.delete();
+   }
+
+   @Test
+   public void journaledFilesAreNoOrphans() throws Exception {
+      File a = write("a");
+      File b = write("b");
+      put("a");
+      put("b");
+      put("gone");
+      UploadJournal journal = new UploadJournal(journalFile, STORE);
+      journal.record("a", a.length(), a.lastModified(), "md5", CONTAINER, "eTag");
+      journal.record("b", b.length(), b.lastModified(), "md5", CONTAINER, "eTag");
+      journal.close();
+
+      BlobUploaderMain.journal = new UploadJournal(journalFile, STORE);
+      BlobUploaderMain.containerName = CONTAINER;
+      BlobUploaderMain.remoteIndex = RemoteIndex.load(blobStore, CONTAINER);
+      ArrayBlockingQueue<File> queue = new ArrayBlockingQueue<File>(16);
+      DirectoryWalker walker = new DirectoryWalker(queue);
+      walker.walk(dir, 0);
+
+      // Both files were skipped by the journal, and never looked up in the index by a worker.
+      assertTrue(queue.isEmpty());
+      assertTrue(walker.isComplete());
+      assertEquals(1, BlobUploaderMain.remoteIndex.deleteOrphans(blobStore, CONTAINER, walker));
+      assertTrue(blobStore.blobExists(CONTAINER, "a"));
+      assertTrue(blobStore.blobExists(CONTAINER, "b"));
+      assertFalse(blobStore.blobExists(CONTAINER, "gone"));
+   }
+
+   @Test
+   public void incompleteWalkDeletesNothing() throws Exception {
+      write("a");
+      put("a");
+      put("gone");
+
+      BlobUploaderMain.remoteIndex = RemoteIndex.load(blobStore, CONTAINER);
+      DirectoryWalker walker = new DirectoryWalker(new ArrayBlockingQueue<File>(16));
+      // A mistyped or unmounted --directory.
+      walker.walk(new File(dir, "missing"), 0);
+
+      assertFalse(walker.isComplete());
+      try {
+         BlobUploaderMain.remoteIndex.deleteOrphans(blobStore, CONTAINER, walker);
+         fail("orphans deleted after an incomplete walk");
+      } catch (IllegalStateException expected) {
+      }
+      assertTrue(blobStore.blobExists(CONTAINER, "a"));
+      assertTrue(blobStore.blobExists(CONTAINER, "gone"));
+   }
+
+   @Test
+   public void filesOfTheSameNameAreTrackedApart() throws Exception {
+      File a = write("a/x");
+      File b = write("b/x");
+      put("a/x");
+      put("c/x");
+
+      BlobUploaderMain.remoteIndex = RemoteIndex.load(blobStore, CONTAINER);
+      ArrayBlockingQueue<File> queue = new ArrayBlockingQueue<File>(16);
+      DirectoryWalker walker = new DirectoryWalker(queue);
+      walker.walk(dir, 0);
+      assertEquals(2, queue.size());
+
+      assertTrue(UploadWorker.isUnchanged(a));
+      // Not compared with the object of a/x, which has the same size and is newer.
+      assertFalse(UploadWorker.isUnchanged(b));
+      // c/x has no file, whatever other files are named x.
+      assertEquals(1, BlobUploaderMain.remoteIndex.deleteOrphans(blobStore, CONTAINER, walker));
+      assertTrue(blobStore.blobExists(CONTAINER, "a/x"));
+      assertFalse(blobStore.blobExists(CONTAINER, "c/x"));
+   }
+
+   @Test
+   public void onlyArchivesAreKeptByTheirMetadata() throws Exception {
+      put("batch-1.tar");
+      blobStore.putBlob(CONTAINER, blobStore.blobBuilder("batch-2.tar")
+            .userMetadata(ImmutableMap.of(BatchUploader.ARCHIVE_METADATA, "true"))
+            .payload("archive")
+            .build());
+
+      BlobUploaderMain.remoteIndex = RemoteIndex.load(blobStore, CONTAINER);
+      DirectoryWalker walker = new DirectoryWalker(new ArrayBlockingQueue<File>(16));
+      walker.walk(dir, 0);
+
+      assertEquals(1, BlobUploaderMain.remoteIndex.deleteOrphans(blobStore, CONTAINER, walker));
+      // A file of the user that happens to be named like an archive.
+      assertFalse(blobStore.blobExists(CONTAINER, "batch-1.tar"));
+      assertTrue(blobStore.blobExists(CONTAINER, "batch-2.tar"));
+   }
+
+   private File write(String name) throws IOException {
+      File file = new File(dir, name);
+      file.getParentFile().mkdirs();
+      Files.write(name, file, Charsets.UTF_8);
+      // Older than the objects stored by the test, whatever the precision of the clocks.
+      file.setLastModified(System.currentTimeMillis() - 60 * 1000);
+      return file;
+   }
+
+   private void put(String name) {
+      blobStore.putBlob(CONTAINER, blobStore.blobBuilder(name).payload(name).build());
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.jclouds.blobstore.BlobStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Runs the walk and the workers against the transient provider, the way BlobUploaderMain does.
+ */
+public class PipelineTest {
+   private static final String[] NAMES = { "top.txt", "a/one.txt", "a/b/two.txt", "a/b/c/three.txt", "d/one.txt" };
+   private static final int QUEUE_SIZE = 2;
+   private static final int WORKERS = 2;
+
+   private File dir;
+
+   @Before
+   public void setUp() throws IOException {
+      dir = Files.createTempDir();
+      for (String name : NAMES) {
+         File file = new File(dir, name);
+         file.getParentFile().mkdirs();
+         Files.write(name, file, Charsets.UTF_8);
+      }
+      BlobUploaderMain.directory = dir;
+      BlobUploaderMain.containerName = UUID.randomUUID().toString();
+      BlobUploaderMain.metrics = new UploadMetrics();
+      BlobUploaderMain.retryPolicy = new RetryPolicy(5, 10, 100);
+      BlobUploaderMain.circuitBreaker = new CircuitBreaker(50, 0.5, 100);
+      BlobUploaderMain.deadLetters = new DeadLetters(null);
+      BlobUploaderMain.concurrency = new ConcurrencyController(WORKERS, WORKERS, WORKERS);
+      BlobUploader.connect("identity", "credential", "transient", null, WORKERS);
+   }
+
+   @After
+   public void tearDown() throws IOException {
+      BlobUploader.disconnect();
+      BlobUploaderMain.deadLetters.close();
+      BlobUploaderMain.deadLetters = null;
+      BlobUploaderMain.concurrency = null;
+      BlobUploaderMain.circuitBreaker = null;
+      BlobUploaderMain.retryPolicy = null;
+      BlobUploaderMain.containerName = null;
+      BlobUploaderMain.directory = null;
+      FileUtils.deleteDirectory(dir);
+   }
+
+   @Test
+   public void everyFileArrivesUnderItsPath() throws Exception {
+      final ArrayBlockingQueue<File> queue = new ArrayBlockingQueue<File>(QUEUE_SIZE);
+      final DirectoryWalker walker = new DirectoryWalker(queue);
+      final Exception[] failure = new Exception[1];
+      Thread walk = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               walker.walk(dir, WORKERS);
+            } catch (Exception e) {
+               failure[0] = e;
+            }
+         }
+      });
+      walk.start();
+
+      // Nobody takes from the queue yet, so the walk must stop once it is full.
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (walk.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+         Thread.sleep(10);
+      }
+      assertEquals(Thread.State.WAITING, walk.getState());
+      assertEquals(QUEUE_SIZE, queue.size());
+
+      Thread[] workers = new Thread[WORKERS];
+      for (int i = 0; i < WORKERS; i++) {
+         workers[i] = new Thread(new UploadWorker(queue, null));
+         workers[i].start();
+      }
+      walk.join(TimeUnit.SECONDS.toMillis(30));
+      for (Thread worker : workers) {
+         worker.join(TimeUnit.SECONDS.toMillis(30));
+         assertFalse(worker.isAlive());
+      }
+      assertFalse(walk.isAlive());
+      if (failure[0] != null) {
+         throw failure[0];
+      }
+
+      assertTrue(walker.isComplete());
+      assertEquals(0, BlobUploaderMain.deadLetters.getCount());
+      assertEquals(NAMES.length, BlobUploaderMain.metrics.getObjectsUploaded());
+      BlobStore blobStore = BlobUploader.blobStore();
+      for (String name : NAMES) {
+         assertTrue(name, blobStore.blobExists(BlobUploaderMain.containerName, name));
+      }
+      assertEquals(NAMES.length, blobStore.countBlobs(BlobUploaderMain.containerName));
+   }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jclouds.examples.blobstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class UploadJournalTest {
+   private static final String STORE = "aws-s3 null us-east-1";
+   private static final String NAME = "dir/upload.txt";
+
+   private File file;
+   private File journalFile;
+
+   @Before
+   public void setUp() throws IOException {
+      file = File.createTempFile("upload", ".txt");
+      Files.write("content", file, Charsets.UTF_8);
+      journalFile = File.createTempFile("journal", ".tsv");
+      journalFile.delete();
+      UploadJournal journal = new UploadJournal(journalFile, STORE);
+      journal.record(NAME, file.length(), file.lastModified(), "md5", "first", "eTag");
+      journal.close();
+   }
+
+   @After
+   public void tearDown() {
+      file.delete();
+      journalFile.delete();
+   }
+
+   @Test
+   public void completedInTheSameContainer() throws IOException {
+      UploadJournal journal = new UploadJournal(journalFile, STORE);
+      try {
+         // As the directory walk sees it, in milliseconds through java.nio.
+         long mtime = java.nio.file.Files.getLastModifiedTime(file.toPath()).toMillis();
+         assertTrue(journal.isCompleted(NAME, file.length(), mtime, "first"));
+         assertEquals("first", journal.getLastContainer());
+      } finally {
+         journal.close();
+      }
+   }
+
+   @Test
+   public void notCompletedInAnotherContainer() throws IOException {
+      UploadJournal journal = new UploadJournal(journalFile, STORE);
+      try {
+         assertFalse(journal.isCompleted(NAME, file.length(), file.lastModified(), "second"));
+      } finally {
+         journal.close();
+      }
+   }
+
+   @Test
+   public void notCompletedInAnotherStore() throws IOException {
+      UploadJournal journal = new UploadJournal(journalFile, "azureblob null null");
+      try {
+         assertFalse(journal.isCompleted(NAME, file.length(), file.lastModified(), "first"));
+         assertNull(journal.getLastContainer());
+      } finally {
+         journal.close();
+      }
+   }
+
+   @Test
+   public void notCompletedOnceChanged() throws IOException {
+      UploadJournal journal = new UploadJournal(journalFile, STORE);
+      try {
+         assertFalse(journal.isCompleted(NAME, file.length() + 1, file.lastModified(), "first"));
+         assertFalse(journal.isCompleted(NAME, file.length(), file.lastModified() + 5000, "first"));
+      } finally {
+         journal.close();
+      }
+   }
+}
@@ -18,33 +18,53 @@
  */
 package org.jclouds.examples.rackspace.cloudfiles;
 
-import static org.jclouds.blobstore.options.PutOptions.Builder.multipart;
 import static org.jclouds.examples.rackspace.cloudfiles.Constants.CONTAINER;
 import static org.jclouds.examples.rackspace.cloudfiles.Constants.PROVIDER;
 import static org.jclouds.examples.rackspace.cloudfiles.Constants.REGION;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.util.Properties;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
-import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.io.Payload;
 import org.jclouds.io.Payloads;
 import org.jclouds.openstack.swift.v1.blobstore.RegionScopedBlobStoreContext;
+import org.jclouds.openstack.swift.v1.domain.Segment;
+import org.jclouds.openstack.swift.v1.features.ObjectApi;
+import org.jclouds.rackspace.cloudfiles.v1.CloudFilesApi;
 
-import com.google.common.io.ByteSource;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Closeables;
-import com.google.common.io.Files;
 
 /**
  * Upload a large object in the Cloud Files container from the CreateContainer example.
+ *
+ * The file is uploaded as segments of a Static Large Object. Each segment is read into a direct buffer from a
+ * {@link DirectBufferPool} and sent from there, so the heap stays small whatever the segment size, and only as many
+ * segments are in memory as there are buffers.
  */
 public class UploadLargeObject implements Closeable {
-   private BlobStore blobStore;
+   // The number of segments being uploaded in parallel, and of the buffers they are staged in
+   private static final int PARALLEL_DEGREE = 5;
+   // The size of the segments, and of the buffers: 64 MB, at most 5 x 64 MB = 320 MB off the heap
+   private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+   private final BlobStore blobStore;
+   private final CloudFilesApi cloudFiles;
+   private final DirectBufferPool buffers = new DirectBufferPool(PARALLEL_DEGREE, SEGMENT_SIZE);
 
    /**
     * To get a username and API key see http://jclouds.apache.org/guides/rackspace/
@@ -68,41 +88,91 @@ public class UploadLargeObject implements Closeable {
    }
 
    public UploadLargeObject(String username, String apiKey) {
-      Properties overrides = new Properties();
-      // This property controls the number of parts being uploaded in parallel, the default is 4
-      overrides.setProperty("jclouds.mpu.parallel.degree", "5");
-      // This property controls the size (in bytes) of parts being uploaded in parallel, the default is 33554432 bytes = 32 MB
-      overrides.setProperty("jclouds.mpu.parts.size", "67108864"); // 64 MB
-
       RegionScopedBlobStoreContext context = ContextBuilder.newBuilder(PROVIDER)
             .credentials(username, apiKey)
-            .overrides(overrides)
             .buildView(RegionScopedBlobStoreContext.class);
       blobStore = context.getBlobStore(REGION);
+      cloudFiles = blobStore.getContext().unwrapApi(CloudFilesApi.class);
    }
 
    /**
-    * Upload a large object from a File using the BlobStore API.
+    * Upload a large object from a File using the Swift API: the segments in parallel, then the manifest that
+    * joins them.
     *
     * @throws ExecutionException
     * @throws InterruptedException
     */
-   private void uploadLargeObjectFromFile(File largeFile) throws InterruptedException, ExecutionException {
+   private void uploadLargeObjectFromFile(File largeFile) throws InterruptedException, ExecutionException,
+         IOException {
       System.out.format("Upload Large Object From File%n");
 
-      ByteSource source = Files.asByteSource(largeFile);
-      // create the payload and set the content length
-      Payload payload = Payloads.newByteSourcePayload(source);
-      payload.getContentMetadata().setContentLength(largeFile.length());
+      String name = largeFile.getName();
+      ObjectApi objectApi = cloudFiles.getObjectApi(REGION, CONTAINER);
+      ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_DEGREE);
+      RandomAccessFile file = new RandomAccessFile(largeFile, "r");
+
+      try {
+         FileChannel channel = file.getChannel();
+         long length = channel.size();
+         List<Future<Segment>> futures = new ArrayList<Future<Segment>>();
+         int number = 1;
+
+         for (long offset = 0; offset < length; offset += SEGMENT_SIZE, number++) {
+            String segmentName = String.format("%s/%05d", name, number);
+            int size = (int) Math.min(SEGMENT_SIZE, length - offset);
+            futures.add(executor.submit(uploadSegment(objectApi, channel, segmentName, offset, size)));
+         }
+
+         List<Segment> segments = new ArrayList<Segment>(futures.size());
+         for (Future<Segment> future : futures) {
+            segments.add(future.get());
+         }
+
+         String eTag = cloudFiles.getStaticLargeObjectApi(REGION, CONTAINER)
+               .replaceManifest(name, segments, ImmutableMap.<String, String>of());
+
+         System.out.format("  Uploaded %s in %d segments eTag=%s%n", name, segments.size(), eTag);
+         System.out.format("  Staged in %d MB of direct buffers%n", buffers.getAllocatedBytes() / (1024 * 1024));
+      } finally {
+         executor.shutdownNow();
+         file.close();
+      }
+   }
+
+   /**
+    * Waits for a free buffer, reads the segment into it and uploads it from there. The buffer goes back to the pool
+    * once the segment is stored, or failed for good.
+    */
+   private Callable<Segment> uploadSegment(final ObjectApi objectApi, final FileChannel channel,
+         final String segmentName, final long offset, final int size) {
+      return new Callable<Segment>() {
+         @Override
+         public Segment call() throws IOException, InterruptedException {
+            ByteBuffer buffer = buffers.acquire();
 
-      Blob blob = blobStore.blobBuilder(largeFile.getName())
-            .payload(payload)
-            .build();
+            try {
+               buffer.limit(size);
+               while (buffer.hasRemaining()) {
+                  if (channel.read(buffer, offset + buffer.position()) < 0) {
+                     throw new EOFException("file ended before " + segmentName);
+                  }
+               }
+               buffer.flip();
 
-      // configure the blobstore to use multipart uploading of the file
-      String eTag = blobStore.putBlob(CONTAINER, blob, multipart());
+               Payload payload = Payloads.newByteSourcePayload(DirectBufferPool.asByteSource(buffer));
+               payload.getContentMetadata().setContentLength((long) size);
+               String eTag = objectApi.put(segmentName, payload);
 
-      System.out.format("  Uploaded %s eTag=%s", largeFile.getName(), eTag);
+               return Segment.builder()
+                     .path(CONTAINER + "/" + segmentName)
+                     .etag(eTag)
+                     .sizeBytes(size)
+                     .build();
+            } finally {
+               buffers.release(buffer);
+            }
+         }
+      };
    }
 
    /**